@@ -0,0 +1,248 @@
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * End-to-end latency benchmark of the Player callbacks. Each environment is
+ * played in-process by the GameServer and a Client connected through pipes, so
+ * the game (deadlines included) is exactly the one played over stdin/stdout.
+ * The transport is set with the system property bench.transport: text (the
+ * default), binary (both over pipes) or queue.
+ * For each environment it prints the final score and the p50/p99/max latency of
+ * shoot, hit, guess and reveal, overall and per round.
+ *
+ * Usage (from the DuckHunt directory): java PlayerBenchmark [environment ...]
+ * By default all the *.in files of the current directory are played. All the
+ * games run in the same JVM, so the later ones run on JIT-compiled code: play
+ * one environment per invocation for the cold-start latencies.
+ *
+ * The latency budgets (ms) default to the deadlines of the GameServer and can
+ * be set with the system properties bench.shoot, bench.hit, bench.guess and
+ * bench.reveal. The exit status is 1 if a budget is exceeded, or if a game
+ * fails (e.g. the player times out).
+ *
+ * @author fruggeri
+ */
+public class PlayerBenchmark {
+	private static final String[] CALLBACKS = {"shoot", "hit", "guess", "reveal"};
+	private static final int SHOOT = 0, HIT = 1, GUESS = 2, REVEAL = 3;
+	private static final long[] BUDGET_MS = {
+			Long.getLong("bench.shoot", 2000),
+			Long.getLong("bench.hit", 200),
+			Long.getLong("bench.guess", 10000),
+			Long.getLong("bench.reveal", 1000)
+	};
+	private static final int PIPE_SIZE = 1 << 16;
+	private static final String TRANSPORT = System.getProperty("bench.transport", "text");
+
+	/**
+	 * Latency samples (ns) of a callback.
+	 */
+	private static class Samples {
+		private long[] data = new long[16];
+		private int size;
+
+		void add(long sample) {
+			if (size == data.length)
+				data = Arrays.copyOf(data, 2 * size);
+			data[size++] = sample;
+		}
+
+		void addAll(Samples other) {
+			for (int i=0; i<other.size; i++)
+				add(other.data[i]);
+		}
+
+		int size() {
+			return size;
+		}
+
+		/**
+		 * @param p percentile in (0, 100]
+		 * @return percentile (nearest rank) in ms, 0 if there are no samples
+		 */
+		double percentileMs(double p) {
+			if (size == 0)
+				return 0;
+			long[] sorted = Arrays.copyOf(data, size);
+			Arrays.sort(sorted);
+			int rank = (int) Math.ceil(p / 100 * size);
+			return sorted[Math.max(rank, 1) - 1] / 1e6;
+		}
+	}
+
+	/**
+	 * Player recording the latency of its callbacks, per round.
+	 */
+	private static class TimedPlayer extends Player {
+		final List<Samples[]> rounds = new ArrayList<>();
+		GameState state;
+
+		@Override
+		public Action shoot(GameState pState, Deadline pDue) {
+			long start = System.nanoTime();
+			Action action = super.shoot(pState, pDue);
+			record(pState, SHOOT, System.nanoTime() - start);
+			return action;
+		}
+
+		@Override
+		public int[] guess(GameState pState, Deadline pDue) {
+			long start = System.nanoTime();
+			int[] guesses = super.guess(pState, pDue);
+			record(pState, GUESS, System.nanoTime() - start);
+			return guesses;
+		}
+
+		@Override
+		public void hit(GameState pState, int pBird, Deadline pDue) {
+			long start = System.nanoTime();
+			super.hit(pState, pBird, pDue);
+			record(pState, HIT, System.nanoTime() - start);
+		}
+
+		@Override
+		public void reveal(GameState pState, int[] pSpecies, Deadline pDue) {
+			long start = System.nanoTime();
+			super.reveal(pState, pSpecies, pDue);
+			record(pState, REVEAL, System.nanoTime() - start);
+		}
+
+		private void record(GameState pState, int callback, long latency) {
+			state = pState;
+			while (rounds.size() <= pState.getRound()) {
+				Samples[] round = new Samples[CALLBACKS.length];
+				for (int c=0; c<round.length; c++)
+					round[c] = new Samples();
+				rounds.add(round);
+			}
+			rounds.get(pState.getRound())[callback].add(latency);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String[] environments = args;
+		if (environments.length == 0) {
+			environments = new File(".").list((dir, name) -> name.endsWith(".in"));
+			Arrays.sort(environments);
+		}
+
+		List<String> failures = new ArrayList<>();
+		for (String environment : environments) {
+			TimedPlayer player = new TimedPlayer();
+			String error = play(environment, player);
+			if (error != null)
+				failures.add(environment + ": " + error);
+			report(environment, player, error, failures);
+		}
+
+		if (!failures.isEmpty()) {
+			System.out.println("FAILED");
+			for (String failure : failures)
+				System.out.println("  " + failure);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Plays a game in the given environment.
+	 *
+	 * @param environment environment file
+	 * @param player player
+	 * @return error message, null if the game completed
+	 */
+	private static String play(String environment, TimedPlayer player) throws IOException, InterruptedException {
+		Transport serverEnd, clientEnd;
+		if (TRANSPORT.equals("queue")) {
+			QueueTransport[] ends = QueueTransport.connect();
+			serverEnd = ends[0];
+			clientEnd = ends[1];
+		} else {
+			PipedOutputStream toServer = new PipedOutputStream(), toClient = new PipedOutputStream();
+			PipedInputStream serverIn = new PipedInputStream(toServer, PIPE_SIZE);
+			PipedInputStream clientIn = new PipedInputStream(toClient, PIPE_SIZE);
+			if (TRANSPORT.equals("binary")) {
+				serverEnd = new BinaryTransport(serverIn, toClient);
+				clientEnd = new BinaryTransport(clientIn, toServer);
+			} else {
+				serverEnd = new TextTransport(serverIn, new PrintStream(toClient, true));
+				clientEnd = new TextTransport(clientIn, new PrintStream(toServer, true));
+			}
+		}
+
+		GameServer server = new GameServer(serverEnd);
+		try (FileReader reader = new FileReader(environment)) {
+			server.load(reader);
+		}
+
+		// server in its own thread, as in a separate process
+		Thread serverThread = new Thread(() -> {
+			try {
+				server.run();
+			} finally {
+				close(serverEnd);
+			}
+		}, "GameServer");
+		serverThread.start();
+
+		String error = null;
+		try {
+			new Client(player, clientEnd).run();
+		} catch (Exception e) {
+			error = e.getMessage();
+		} finally {
+			close(clientEnd);
+		}
+		serverThread.join();
+		return error;
+	}
+
+	private static void close(Transport transport) {
+		try {
+			transport.close();
+		} catch (IOException e) {
+			// the other end is already closed
+		}
+	}
+
+	/**
+	 * Prints the latencies of a game and checks them against the budgets.
+	 *
+	 * @param environment environment file
+	 * @param player player
+	 * @param error error message of the game, null if none
+	 * @param failures list of failures updated by the method
+	 */
+	private static void report(String environment, TimedPlayer player, String error, List<String> failures) {
+		System.out.println(environment + ": score " + (player.state == null ? "n/a" : player.state.myScore())
+				+ (error == null ? "" : " (" + error + ")"));
+		System.out.println(String.format("  %-8s %6s %6s %10s %10s %10s %10s", "callback", "round", "calls",
+				"p50 ms", "p99 ms", "max ms", "budget ms"));
+
+		for (int c=0; c<CALLBACKS.length; c++) {
+			Samples all = new Samples();
+			for (Samples[] round : player.rounds)
+				all.addAll(round[c]);
+			print(CALLBACKS[c], "all", all, BUDGET_MS[c]);
+			for (int r=0; r<player.rounds.size(); r++)
+				if (player.rounds.get(r)[c].size() > 0)
+					print(CALLBACKS[c], Integer.toString(r), player.rounds.get(r)[c], BUDGET_MS[c]);
+
+			double max = all.percentileMs(100);
+			if (max > BUDGET_MS[c])
+				failures.add(environment + ": " + CALLBACKS[c] + " max " + max + " ms > budget " + BUDGET_MS[c] + " ms");
+		}
+		System.out.println();
+	}
+
+	private static void print(String callback, String round, Samples samples, long budget) {
+		System.out.println(String.format("  %-8s %6s %6d %10.3f %10.3f %10.3f %10d", callback, round, samples.size(),
+				samples.percentileMs(50), samples.percentileMs(99), samples.percentileMs(100), budget));
+	}
+}
@@ -0,0 +1,108 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+
+/**
+ * Transport of the messages in a compact binary framing: the type (one byte),
+ * the number of values and the values, all as variable-length integers
+ * (zigzag, 7 bits per byte). The moves, species and guesses take one byte
+ * each, and nothing is formatted or parsed as text.
+ *
+ * The output is buffered until the transport waits for a message (or is
+ * closed), so a whole turn of the server is written at once.
+ */
+class BinaryTransport implements Transport {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_VALUES = 1 << 24;
+
+    /**
+     * Create a transport reading from and writing to the given streams (e.g.
+     * System.in and System.out, or the streams of a socket)
+     */
+    public BinaryTransport(InputStream pInputStream, OutputStream pOutputStream)
+    {
+        mInputStream = new BufferedInputStream(pInputStream, BUFFER_SIZE);
+        mOutputStream = new BufferedOutputStream(pOutputStream, BUFFER_SIZE);
+        mState = new ProtocolState();
+    }
+
+    @Override
+    public void send(Message pMessage) throws IOException
+    {
+        mState.update(pMessage);
+        mOutputStream.write(pMessage.getType());
+        writeVarInt(pMessage.size());
+        for (int i = 0; i < pMessage.size(); ++i)
+            writeVarInt(zigzag(pMessage.get(i)));
+    }
+
+    @Override
+    public boolean receive(Message pMessage) throws IOException
+    {
+        mOutputStream.flush();
+        int lType = mInputStream.read();
+        if (lType < 0)
+            return false;
+        if (lType >= Message.cNames.length)
+            throw new ProtocolException("Unknown message type: " + lType);
+
+        int lSize = readVarInt();
+        if (lSize < 0 || lSize > MAX_VALUES)
+            throw new ProtocolException("Invalid number of values: " + lSize);
+        pMessage.set(lType);
+        for (int i = 0; i < lSize; ++i) {
+            int lValue = readVarInt();
+            pMessage.add((lValue >>> 1) ^ -(lValue & 1));
+        }
+
+        // only the expected answer can come after SHOOT or GUESS, and only then
+        boolean lAnswer = lType == Message.ACTION || lType == Message.GUESSES;
+        if (mState.getAnswer() >= 0 ? lType != mState.getAnswer() : lAnswer)
+            throw new ProtocolException("Unexpected message: " + Message.cNames[lType]);
+        mState.check(pMessage);
+        mState.update(pMessage);
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        mOutputStream.close();
+    }
+
+    private static int zigzag(int pValue)
+    {
+        return (pValue << 1) ^ (pValue >> 31);
+    }
+
+    private void writeVarInt(int pValue) throws IOException
+    {
+        while ((pValue & ~0x7F) != 0) {
+            mOutputStream.write((pValue & 0x7F) | 0x80);
+            pValue >>>= 7;
+        }
+        mOutputStream.write(pValue);
+    }
+
+    private int readVarInt() throws IOException
+    {
+        int lValue = 0;
+        for (int lShift = 0; lShift < 35; lShift += 7) {
+            int lByte = mInputStream.read();
+            if (lByte < 0)
+                throw new EOFException("Truncated message");
+            lValue |= (lByte & 0x7F) << lShift;
+            if ((lByte & 0x80) == 0)
+                return lValue;
+        }
+        throw new ProtocolException("Invalid integer");
+    }
+
+    private InputStream mInputStream;
+    private OutputStream mOutputStream;
+    private ProtocolState mState;
+}
@@ -1,27 +1,52 @@
-import java.util.Vector;
+import java.util.Arrays;
 
 /**
  * Represents a bird with history of movements
  */
 class Bird {
+    // initial capacity of the history (one observation per turn of a round)
+    private static final int INITIAL_CAPACITY = 100;
+
     // /length of the sequence of past actions of the duck
     public int getSeqLength() {
-        return mSeq.size();
+        return mLength;
+    }
+
+    // /number of observations before the bird died (all of them if it is alive)
+    public int getLiveLength() {
+        return mLiveLength;
+    }
+
+    /**
+     * Returns the observations of the bird, without copying them
+     *
+     * The first getSeqLength() entries are valid, and the first
+     * getLiveLength() of them are the observations before the bird died. The
+     * array is the storage of the bird: it must not be modified by the caller,
+     * and it is modified by the bird as the game goes on (the new observations
+     * are written in it, kill() overwrites the last one with MOVE_DEAD, and a
+     * new array replaces it when it is full). Use it only until the next
+     * observation, and copy any part of it to keep.
+     */
+    public byte[] getObservations() {
+        return mSeq;
     }
 
     // /returns the last action of the bird
     public int getLastObservation() {
-        return getObservation(mSeq.size() - 1);
+        return getObservation(mLength - 1);
     }
 
     // /returns one action in the sequence of actions of the bird
     public int getObservation(int i) {
-        return mSeq.get(i);
+        if (i >= mLength)
+            throw new ArrayIndexOutOfBoundsException(i);
+        return mSeq[i];
     }
 
     // /returns true if the bird is dead
     public boolean isDead() {
-        return getLastObservation() == Constants.MOVE_DEAD;
+        return mLiveLength < mLength;
     }
 
     // /returns true if the duck was dead at time step i
@@ -44,15 +69,27 @@ class Bird {
      * them yourself!
      */
     public void addObservation(int pMovement) {
-        if (!mSeq.isEmpty() && mSeq.lastElement() == Constants.MOVE_DEAD)
-            mSeq.add(Constants.MOVE_DEAD);
-        else
-            mSeq.add(pMovement);
+        if (pMovement < Byte.MIN_VALUE || pMovement > Byte.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid movement: " + pMovement);
+        if (mLength == mSeq.length)
+            mSeq = Arrays.copyOf(mSeq, 2 * mLength);
+
+        if (isDead())
+            mSeq[mLength++] = Constants.MOVE_DEAD;
+        else {
+            mSeq[mLength++] = (byte) pMovement;
+            if (pMovement != Constants.MOVE_DEAD)
+                mLiveLength = mLength;
+        }
     }
 
     public void kill() {
-        mSeq.set(mSeq.size() - 1, Constants.MOVE_DEAD);
+        mSeq[mLength - 1] = Constants.MOVE_DEAD;
+        mLiveLength = Math.min(mLiveLength, mLength - 1);
     }
 
-    private Vector<Integer> mSeq = new Vector<Integer>();
+    // the observations (moves fit in a byte), the first mLength are valid
+    private byte[] mSeq = new byte[INITIAL_CAPACITY];
+    private int mLength;
+    private int mLiveLength;    // observations before the first MOVE_DEAD
 }
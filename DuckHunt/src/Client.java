@@ -1,6 +1,5 @@
-import java.io.BufferedReader;
+import java.io.InputStream;
 import java.io.PrintStream;
-import java.util.StringTokenizer;
 
 /**
  * Encapsulates client functionality (except agent intelligence)
@@ -9,14 +8,25 @@ class Client {
     /**
      * Create a client with a player
      *
-     * The client is connected to the server through streams
+     * The client is connected to the server through streams, in the text
+     * protocol
      */
-    public Client(Player pPlayer, BufferedReader pInputStream,
+    public Client(Player pPlayer, InputStream pInputStream,
             PrintStream pOutputStream) {
+        this(pPlayer, new TextTransport(pInputStream, pOutputStream));
+    }
+
+    /**
+     * Create a client with a player
+     *
+     * The client is connected to the server through a transport
+     */
+    public Client(Player pPlayer, Transport pTransport) {
         mPlayer = pPlayer;
-        mInputStream = pInputStream;
-        mOutputStream = pOutputStream;
+        mTransport = pTransport;
         mState = null;
+        mMessage = new Message();
+        mNewObservations = new int[0];
     }
 
     /**
@@ -27,6 +37,9 @@ class Client {
         while (processMessage())
             ;
 
+        if (mState != null)
+            mPlayer.gameOver(mState);
+
         if (Main.gVerbose)
             System.err.println("Final score: " + mState.myScore());
     }
@@ -35,80 +48,79 @@ class Client {
      * Process a message from the server
      */
     private boolean processMessage() throws Exception {
-        // Read message from stream
-        String lString;
-        if ((lString = mInputStream.readLine()) == null)
+        // Read message from the transport (which checks its format)
+        Message lMessage = mMessage;
+        if (!mTransport.receive(lMessage))
             return false;
 
-        // Parse message
-        StringTokenizer lMessage = new StringTokenizer(lString);
-        String lMessageType = lMessage.nextToken();
-
-        if (lMessageType.equals("GAME")) {
+        switch (lMessage.getType()) {
+        case Message.GAME: {
             // Get my player id and how many players there are in total
-            int lWhoIAm = Integer.parseInt(lMessage.nextToken());
-            int lNumPlayers = Integer.parseInt(lMessage.nextToken());
+            int lWhoIAm = lMessage.get(0);
+            int lNumPlayers = lMessage.get(1);
             mState = new GameState(lWhoIAm, lNumPlayers);
-        } else if (lMessageType.equals("SCORE")) {
+            break;
+        }
+        case Message.SCORE: {
             // Read the score for each player
             int[] lScores = new int[mState.getNumPlayers()];
             for (int i = 0; i < lScores.length; ++i)
-                lScores[i] = Integer.parseInt(lMessage.nextToken());
+                lScores[i] = lMessage.get(i);
             mState.setScores(lScores);
 
             if (Main.gVerbose)
                 System.err.println("My score: " + mState.myScore());
-        } else if (lMessageType.equals("ROUND")) {
+            break;
+        }
+        case Message.ROUND: {
             // Get current round and number of birds
-            int lRound = Integer.parseInt(lMessage.nextToken());
-            int lNumBirds = Integer.parseInt(lMessage.nextToken());
+            int lRound = lMessage.get(0);
+            int lNumBirds = lMessage.get(1);
             mState.newRound(lRound, lNumBirds);
-        } else if (lMessageType.equals("MOVES")) {
-            int lNumMoves = Integer.parseInt(lMessage.nextToken());
-            int lNewObservations[] = new int[mState.getNumBirds()];
-
-            // Read moves line by line
-            for (int i = 0; i < lNumMoves; ++i) {
-                if ((lString = mInputStream.readLine()) == null)
-                    throw new Exception(
-                            "getline failed while reading MOVES in readMessage");
-
-                StringTokenizer lMoves = new StringTokenizer(lString);
-                for (int b = 0; b < mState.getNumBirds(); ++b)
-                    lNewObservations[b] = Integer.parseInt(lMoves.nextToken());
+            break;
+        }
+        case Message.MOVES: {
+            int lNumMoves = lMessage.get(0);
 
-                // Add the observed moves to the birds
-                mState.addMoves(lNewObservations);
+            // the buffer of the moves is reused (the birds copy the moves)
+            if (mNewObservations.length != mState.getNumBirds())
+                mNewObservations = new int[mState.getNumBirds()];
 
-                if (lMoves.hasMoreTokens())
-                    throw new Exception(
-                            "Trailing input for MOVES data in readMessage");
+            // Add the observed moves to the birds, one turn at a time
+            for (int i = 0; i < lNumMoves; ++i) {
+                for (int b = 0; b < mNewObservations.length; ++b)
+                    mNewObservations[b] = lMessage.get(1 + i * mNewObservations.length + b);
+                mState.addMoves(mNewObservations);
             }
-        } else if (lMessageType.equals("SHOOT")) {
+            break;
+        }
+        case Message.SHOOT: {
             // Read deadline in milliseconds
-            int lMs = Integer.parseInt(lMessage.nextToken());
+            int lMs = lMessage.get(0);
 
             // Ask the player what to do
             Deadline lDue = new Deadline(lMs);
             Action lAction = mPlayer.shoot(mState, lDue);
             if (lDue.remainingMs() < 0)
-                throw new Exception("Player timed out during SHOOT");
+                throw new PlayerTimeoutException("Player timed out during SHOOT");
 
             // Mark any new moves as processed
             mState.resetNumNewTurns();
 
             // Send response
-            mOutputStream.println(lAction.getBirdNumber() + " "
-                    + lAction.getMovement());
-        } else if (lMessageType.equals("GUESS")) {
+            mTransport.send(lMessage.set(Message.ACTION)
+                    .add(lAction.getBirdNumber()).add(lAction.getMovement()));
+            break;
+        }
+        case Message.GUESS: {
             // Read deadline in milliseconds
-            int lMs = Integer.parseInt(lMessage.nextToken());
+            int lMs = lMessage.get(0);
 
             // Ask the player what to do
             Deadline lDue = new Deadline(lMs);
             int lGuesses[] = mPlayer.guess(mState, lDue);
             if (lDue.remainingMs() < 0)
-                throw new Exception("Player timed out during GUESS");
+                throw new PlayerTimeoutException("Player timed out during GUESS");
 
             if (lGuesses == null || lGuesses.length != mState.getNumBirds())
                 throw new Exception(
@@ -118,53 +130,57 @@ class Client {
             mState.resetNumNewTurns();
 
             // Send response
+            lMessage.set(Message.GUESSES);
             for (int g : lGuesses)
-                mOutputStream.print(g + " ");
-            mOutputStream.println();
-        } else if (lMessageType.equals("HIT")) {
+                lMessage.add(g);
+            mTransport.send(lMessage);
+            break;
+        }
+        case Message.HIT: {
             // Read which bird we hit
-            int lBird = Integer.parseInt(lMessage.nextToken());
-            int lMs = Integer.parseInt(lMessage.nextToken());
+            int lBird = lMessage.get(0);
+            int lMs = lMessage.get(1);
 
             // Tell the player
             Deadline lDue = new Deadline(lMs);
             mPlayer.hit(mState, lBird, lDue);
             if (lDue.remainingMs() < 0)
-                throw new Exception("Player timed out during HIT");
-        } else if (lMessageType.equals("REVEAL")) {
+                throw new PlayerTimeoutException("Player timed out during HIT");
+            break;
+        }
+        case Message.REVEAL: {
             // Read the species of the birds
             int lRevealedSpecies[] = new int[mState.getNumBirds()];
             for (int i = 0; i < mState.getNumBirds(); ++i)
-                lRevealedSpecies[i] = Integer.parseInt(lMessage.nextToken());
+                lRevealedSpecies[i] = lMessage.get(i);
 
-            int lMs = Integer.parseInt(lMessage.nextToken());
+            int lMs = lMessage.get(mState.getNumBirds());
 
             // Tell the player
             Deadline lDue = new Deadline(lMs);
             mPlayer.reveal(mState, lRevealedSpecies, lDue);
             if (lDue.remainingMs() < 0)
-                throw new Exception("Player timed out during REVEAL");
-        } else if (lMessageType.equals("TIMEOUT")) {
-            throw new Exception("Received TIMEOUT from server");
-        } else if (lMessageType.equals("GAMEOVER")) {
+                throw new PlayerTimeoutException("Player timed out during REVEAL");
+            break;
+        }
+        case Message.TIMEOUT:
+            throw new PlayerTimeoutException("Received TIMEOUT from server");
+        case Message.GAMEOVER:
             if (Main.gVerbose)
                 System.err.println("Received GAMEOVER from server");
             return false;
-        } else {
+        default:
             throw new Exception("Failed to parse message in readMessage:\n"
-                    + lString);
+                    + lMessage);
         }
 
-        if (lMessage.hasMoreTokens())
-            throw new Exception("Trailing input for " + lMessageType
-                    + " in readMessage");
-
         // Return false if the stream is broken or closed
         return true;
     }
 
     private Player mPlayer;
     private GameState mState;
-    private BufferedReader mInputStream;
-    private PrintStream mOutputStream;
-};
\ No newline at end of file
+    private Transport mTransport;
+    private Message mMessage;
+    private int mNewObservations[];
+};
@@ -0,0 +1,59 @@
+import java.util.Arrays;
+
+/**
+ * Expected counts accumulated by the E-step of Baum-Welch, i.e. the sufficient
+ * statistics needed to re-estimate pi, A and B. They take O(N^2 + N*K) memory,
+ * independently of the length of the observation sequence.
+ *
+ * @author fruggeri
+ */
+class ExpectedCounts {
+	final int N, K;
+	final double[] initial;			// sum of gamma_0(i)
+	final double[] transitions;		// sum over t<T-1 of di-gamma_t(i,j), row-major
+	final double[] transitionsFrom;	// sum over t<T-1 of gamma_t(i)
+	final double[] emissions;		// sum over t with O_t=k of gamma_t(i), symbol-major
+	final double[] emissionsFrom;	// sum over t of gamma_t(i)
+	int sequences;					// number of observation sequences
+
+	ExpectedCounts(int N, int K) {
+		this.N = N;
+		this.K = K;
+		initial = new double[N];
+		transitions = new double[N*N];
+		transitionsFrom = new double[N];
+		emissions = new double[K*N];
+		emissionsFrom = new double[N];
+	}
+
+	/**
+	 * Sets all the counts to 0.
+	 */
+	void clear() {
+		sequences = 0;
+		Arrays.fill(initial, 0);
+		Arrays.fill(transitions, 0);
+		Arrays.fill(transitionsFrom, 0);
+		Arrays.fill(emissions, 0);
+		Arrays.fill(emissionsFrom, 0);
+	}
+
+	/**
+	 * Adds the counts of other (of the same size) to these counts.
+	 *
+	 * @param other expected counts
+	 */
+	void add(ExpectedCounts other) {
+		add(initial, other.initial);
+		add(transitions, other.transitions);
+		add(transitionsFrom, other.transitionsFrom);
+		add(emissions, other.emissions);
+		add(emissionsFrom, other.emissionsFrom);
+		sequences += other.sequences;
+	}
+
+	private static void add(double[] a, double[] b) {
+		for (int i=0; i<a.length; i++)
+			a[i] += b[i];
+	}
+}
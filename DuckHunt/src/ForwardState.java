@@ -0,0 +1,138 @@
+/**
+ * Incremental forward filter of a HMM: it keeps the scaled alpha vector of the
+ * last time step and the log-probability of the observations seen so far, so
+ * appending one observation costs O(N^2) regardless of the sequence length.
+ * The predictive state vector (distribution of the next hidden state) is
+ * cached, so predicting the next observation again costs O(N*K).
+ *
+ * The filter refers to the parameters the model had when the observations were
+ * appended: if the model is learned again, a new filter must be created.
+ *
+ * @author fruggeri
+ */
+public class ForwardState {
+	private final HMM hmm;
+	private double alpha[], next[], state[], logProb;
+	private boolean stateValid;		// state is computed from the current alpha
+	private int K, T;
+
+	/**
+	 * Creates an empty filter. Use HMM.forwardState().
+	 *
+	 * @param hmm model
+	 * @param N number of states
+	 * @param K number of output symbols
+	 */
+	ForwardState(HMM hmm, int N, int K) {
+		this.hmm = hmm;
+		this.K = K;
+		alpha = new double[N];
+		next = new double[N];
+		state = new double[N];
+		reset();
+	}
+
+	/**
+	 * Forgets all the observations.
+	 */
+	public void reset() {
+		T = 0;
+		logProb = 0;
+		stateValid = false;
+	}
+
+	/**
+	 * Appends one observation.
+	 *
+	 * @param symbol observation
+	 */
+	public void append(int symbol) {
+		double c;
+		if (T == 0) {
+			c = hmm.forwardInit(symbol, alpha, 0);
+		} else {
+			c = hmm.forwardStep(symbol, alpha, 0, next, 0);
+
+			// swap buffers
+			double[] tmp = alpha;
+			alpha = next;
+			next = tmp;
+		}
+		logProb -= Math.log(c);
+		stateValid = false;
+		T++;
+	}
+
+	/**
+	 * Appends the observations O[from:to].
+	 *
+	 * @param O observation sequence
+	 * @param from first observation to append (inclusive)
+	 * @param to last observation to append (exclusive)
+	 */
+	public void append(int[] O, int from, int to) {
+		for (int t=from; t<to; t++)
+			append(O[t]);
+	}
+
+	/**
+	 * Appends the observations O[from:to], stored as bytes.
+	 *
+	 * @param O observation sequence
+	 * @param from first observation to append (inclusive)
+	 * @param to last observation to append (exclusive)
+	 */
+	public void append(byte[] O, int from, int to) {
+		for (int t=from; t<to; t++)
+			append(O[t]);
+	}
+
+	/**
+	 * @return number of observations appended
+	 */
+	public int length() {
+		return T;
+	}
+
+	/**
+	 * Gets the log-probability of the observations appended so far, as
+	 * HMM.evaluate would compute it.
+	 *
+	 * @return log-probability of the observation sequence
+	 */
+	public double logLikelihood() {
+		return Double.isFinite(logProb) ? logProb : Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Computes the distribution of the next observation given the observations
+	 * appended so far. At least one observation must have been appended.
+	 *
+	 * @return next observation distribution
+	 */
+	public double[] predictNext() {
+		double[] result = new double[K];
+		predictNext(result);
+		return result;
+	}
+
+	/**
+	 * Like predictNext(), but writing into a preallocated array.
+	 *
+	 * @param result preallocated array of length K filled by the method
+	 */
+	public void predictNext(double[] result) {
+		if (!stateValid) {
+			hmm.predictState(alpha, 0, state);
+			stateValid = true;
+		}
+		hmm.emit(state, result);
+	}
+
+	/**
+	 * @return model the filter refers to
+	 */
+	public HMM getModel() {
+		return hmm;
+	}
+}
@@ -1,9 +1,15 @@
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
-import java.util.StringTokenizer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * The GameServer runs the game and communicates with the client through text.
@@ -31,7 +37,12 @@ import java.util.StringTokenizer;
  * before responding.
  * Rounds start at 0.
  * There is only one environment per game.
- * The protocol supports several players but the GameServer currently does not.
+ * With several players, the players take turns shooting (one player per turn)
+ * and all the players guess at the same time, each in its own thread and with
+ * its own deadline.
+ *
+ * The messages go through a Transport (see Message for their values), which
+ * encodes them in this text protocol or in another way.
  */
 
 class GameServer
@@ -39,18 +50,18 @@ class GameServer
 
     private class SPlayer
     {
-        SPlayer(BufferedReader pInputStream, PrintStream pOutputStream, int pID)
+        SPlayer(Transport pTransport, int pID)
         {
-            mInputStream = pInputStream;
-            mOutputStream = pOutputStream;
+            mTransport = pTransport;
+            mMessage = new Message();
             mID = pID;
             mNumSent = 0;
             mScore = 0;
             mGameOver = false;
         }
 
-        public BufferedReader mInputStream;
-        public PrintStream mOutputStream;
+        public Transport mTransport;
+        public Message mMessage;    // messages to and from the player
 
         int mID;
         int mNumSent;
@@ -64,7 +75,15 @@ class GameServer
         public int[] mActions;
     }
 
-    public GameServer(BufferedReader pInputStream, PrintStream pOutputStream)
+    public GameServer(InputStream pInputStream, PrintStream pOutputStream)
+    {
+        this(new TextTransport(pInputStream, pOutputStream));
+    }
+
+    /**
+     * Create a server for a game with one player per transport
+     */
+    public GameServer(Transport... pTransports)
     {
         mMaxRounds = 2;
         mMaxTurns = 100;
@@ -72,8 +91,19 @@ class GameServer
         mTimeForHit = 200;
         mTimeForGuess = 10000;
         mTimeForReveal = 1000;
-        mPlayers = new SPlayer[1];
-        mPlayers[0] = new SPlayer(pInputStream, pOutputStream, 0);
+        mPlayers = new SPlayer[pTransports.length];
+        for (int i = 0; i < pTransports.length; ++i)
+            mPlayers[i] = new SPlayer(pTransports[i], i);
+        mLog = System.err;
+    }
+
+    /**
+     * Set the stream where the server reports the game (standard error by
+     * default)
+     */
+    public void setLog(PrintStream pLog)
+    {
+        mLog = pLog;
     }
 
     public void load(Readable pStream)
@@ -109,17 +139,34 @@ class GameServer
         // Load default game if nothing is loaded
         if (mEnvironment == null)
         {
-            System.err.println("No environment loaded");
+            mLog.println("No environment loaded");
             System.exit(-1);
         }
 
+        // One thread per player for the phases they play at the same time
+        if (mPlayers.length > 1)
+            mExecutor = Executors.newFixedThreadPool(mPlayers.length);
+        try
+        {
+            play();
+        }
+        finally
+        {
+            if (mExecutor != null)
+                mExecutor.shutdown();
+            mExecutor = null;
+        }
+    }
+
+    private void play()
+    {
         if (Main.gVerbose)
-            System.err.println("Starting game with " + mPlayers.length
+            mLog.println("Starting game with " + mPlayers.length
                     + (mPlayers.length == 1 ? " player" : " players"));
 
         // Send start of game
         for (int i = 0; i < mPlayers.length; ++i)
-            mPlayers[i].mOutputStream.println("GAME " + i + " " + mPlayers.length);
+            send(mPlayers[i], mPlayers[i].mMessage.set(Message.GAME).add(i).add(mPlayers.length));
 
         // The players take turns shooting
         int lActivePlayer = 0;
@@ -142,7 +189,7 @@ class GameServer
             }
 
             if (Main.gVerbose)
-                System.err.println("Starting round " + r + " with " + mBirds.length + " birds");
+                mLog.println("Starting round " + r + " with " + mBirds.length + " birds");
 
             // Send start of round
             for (SPlayer lPlayer : mPlayers)
@@ -194,9 +241,8 @@ class GameServer
             for (SPlayer lPlayer : mPlayers)
                 sendScores(lPlayer);
 
-            // Let the players guess species
-            for (SPlayer lPlayer : mPlayers)
-                playerGuess(lPlayer);
+            // Let the players guess species (all at the same time)
+            playersGuess();
 
             // Send scores to all players
             for (SPlayer lPlayer : mPlayers)
@@ -209,10 +255,10 @@ class GameServer
 
         if (Main.gVerbose)
         {
-            System.err.print("Final scores:");
+            mLog.print("Final scores:");
             for (SPlayer lPlayer : mPlayers)
-                System.err.print(" " + lPlayer.mScore);
-            System.err.println();
+                mLog.print(" " + lPlayer.mScore);
+            mLog.println();
         }
     }
 
@@ -223,53 +269,27 @@ class GameServer
 
         // Ask the player to shoot
         Deadline lDue = new Deadline(mTimeForShoot);
-        pPlayer.mOutputStream.println("SHOOT " + lDue.remainingMs());
+        send(pPlayer, pPlayer.mMessage.set(Message.SHOOT).add((int) lDue.remainingMs()));
 
         if (Main.gVerbose)
-            System.err.println("Waiting for player to shoot");
+            mLog.println("Waiting for player to shoot");
 
-        // Read message from stream
-        String lString;
-        try
-        {
-            if ((lString = pPlayer.mInputStream.readLine()) == null)
-            {
-                System.err.println("getline failed for player " + pPlayer.mID);
-                pPlayer.mGameOver = true;
-                return;
-            }
-        }
-        catch (IOException e)
-        {
-            System.err.println("getline failed for player " + pPlayer.mID);
-            pPlayer.mGameOver = true;
+        // Read the action (the transport checks its format)
+        if (!receive(pPlayer, pPlayer.mMessage))
             return;
-        }
 
         if (Main.gVerbose)
-            System.err.println("Got message from player: " + lString);
+            mLog.println("Got message from player: " + pPlayer.mMessage);
 
         if (lDue.remainingMs() < 0)
         {
-            System.err.println("Player " + pPlayer.mID + " timed out");
-            removePlayer(pPlayer, "TIMEOUT");
+            mLog.println("Player " + pPlayer.mID + " timed out");
+            removePlayer(pPlayer, Message.TIMEOUT);
             return;
         }
 
-        // Parse the message
-        StringTokenizer lIn = new StringTokenizer(lString);
-        int lBird, lMovement;
-        try
-        {
-            lBird = Integer.parseInt(lIn.nextToken());
-            lMovement = Integer.parseInt(lIn.nextToken());
-        }
-        catch (Exception e)
-        {
-            System.err.println("Failed to parse action for player " + pPlayer.mID);
-            pPlayer.mGameOver = true;
-            return;
-        }
+        int lBird = pPlayer.mMessage.get(0);
+        int lMovement = pPlayer.mMessage.get(1);
 
         if (lBird >= 0 && lBird < mBirds.length)
         {
@@ -284,13 +304,13 @@ class GameServer
                 {
                     // Hitting the black stork means disqualification
                     pPlayer.mScore = 0;
-                    removePlayer(pPlayer, "GAMEOVER");
+                    removePlayer(pPlayer, Message.GAMEOVER);
                     return;
                 }
 
                 // Tell the player that it hit the bird
                 // The time is only measured in the client since we don't ask for a response
-                pPlayer.mOutputStream.println("HIT " + lBird + " " + mTimeForHit);
+                send(pPlayer, pPlayer.mMessage.set(Message.HIT).add(lBird).add((int) mTimeForHit));
             }
             else
             {
@@ -299,6 +319,36 @@ class GameServer
         }
     }
 
+    private void playersGuess()
+    {
+        if (mExecutor == null)
+        {
+            for (SPlayer lPlayer : mPlayers)
+                playerGuess(lPlayer);
+            return;
+        }
+
+        List<Future<?>> lGuesses = new ArrayList<Future<?>>();
+        for (SPlayer lPlayer : mPlayers)
+            lGuesses.add(mExecutor.submit(() -> playerGuess(lPlayer)));
+        for (Future<?> lGuess : lGuesses)
+        {
+            try
+            {
+                lGuess.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            catch (ExecutionException e)
+            {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
     private void playerGuess(SPlayer pPlayer)
     {
         if (pPlayer.mGameOver)
@@ -306,57 +356,33 @@ class GameServer
 
         // Ask the player to guess
         Deadline lDue = new Deadline(mTimeForGuess);
-        pPlayer.mOutputStream.println("GUESS " + lDue.remainingMs());
+        send(pPlayer, pPlayer.mMessage.set(Message.GUESS).add((int) lDue.remainingMs()));
 
         if (Main.gVerbose)
-            System.err.println("Waiting for player to guess");
+            mLog.println("Waiting for player to guess");
 
-        String lString;
-        try
-        {
-            if ((lString = pPlayer.mInputStream.readLine()) == null)
-            {
-                System.err.println("getline failed for player " + pPlayer.mID);
-                pPlayer.mGameOver = true;
-                return;
-            }
-        }
-        catch (IOException e)
-        {
-            System.err.println("getline failed for player " + pPlayer.mID);
-            pPlayer.mGameOver = true;
+        // Read the guesses (the transport checks their format)
+        if (!receive(pPlayer, pPlayer.mMessage))
             return;
-        }
 
         if (Main.gVerbose)
-            System.err.println("Got message from player: " + lString);
+            mLog.println("Got message from player: " + pPlayer.mMessage);
 
         if (lDue.remainingMs() < 0)
         {
-            System.err.println("Player " + pPlayer.mID + " timed out");
-            removePlayer(pPlayer, "TIMEOUT");
+            mLog.println("Player " + pPlayer.mID + " timed out");
+            removePlayer(pPlayer, Message.TIMEOUT);
             return;
         }
 
-        // Parse the message and score the guesses
-        StringTokenizer lIn = new StringTokenizer(lString);
+        // Score the guesses
         int lScore = 0;
         int[] lRevealing = new int[mBirds.length];
         Arrays.fill(lRevealing, Constants.SPECIES_UNKNOWN);
         boolean lDoReveal = false;
         for (int i = 0; i < mBirds.length; ++i)
         {
-            int lGuessedSpecies = -1;
-            try
-            {
-                lGuessedSpecies = Integer.parseInt(lIn.nextToken());
-            }
-            catch (Exception e)
-            {
-                System.err.println("Failed to read guess from player for bird " + i);
-                pPlayer.mGameOver = true;
-                return;
-            }
+            int lGuessedSpecies = pPlayer.mMessage.get(i);
 
             if (lGuessedSpecies == Constants.SPECIES_UNKNOWN)
                 continue;
@@ -371,15 +397,8 @@ class GameServer
             lDoReveal = true;
         }
 
-        if (lIn.hasMoreTokens())
-        {
-            System.err.println("Trailing output when reading guess:\n" + lString);
-            pPlayer.mGameOver = true;
-            return;
-        }
-
         if (Main.gVerbose)
-            System.err.println("Score for guessing: " + lScore);
+            mLog.println("Score for guessing: " + lScore);
 
         pPlayer.mScore += lScore;
 
@@ -387,18 +406,56 @@ class GameServer
         // if the player made any guesses
         if (lDoReveal)
         {
-            pPlayer.mOutputStream.print("REVEAL");
+            pPlayer.mMessage.set(Message.REVEAL);
             for (int lSpecies : lRevealing)
-                pPlayer.mOutputStream.print(" " + lSpecies);
-            pPlayer.mOutputStream.println(" " + mTimeForReveal);
+                pPlayer.mMessage.add(lSpecies);
+            send(pPlayer, pPlayer.mMessage.add((int) mTimeForReveal));
             // The time is only measured in the client since we don't ask for a response
         }
     }
 
-    private void removePlayer(SPlayer pPlayer, String pMessage)
+    private void removePlayer(SPlayer pPlayer, int pMessageType)
+    {
+        send(pPlayer, pPlayer.mMessage.set(pMessageType));
+        pPlayer.mGameOver = true;
+    }
+
+    private void send(SPlayer pPlayer, Message pMessage)
+    {
+        try
+        {
+            pPlayer.mTransport.send(pMessage);
+        }
+        catch (IOException e)
+        {
+            mLog.println("send failed for player " + pPlayer.mID);
+            pPlayer.mGameOver = true;
+        }
+    }
+
+    /**
+     * Receive the answer of a player (the player is out of the game if it fails)
+     *
+     * @return false if no valid answer was received
+     */
+    private boolean receive(SPlayer pPlayer, Message pMessage)
     {
-        pPlayer.mOutputStream.println(pMessage);
+        try
+        {
+            if (pPlayer.mTransport.receive(pMessage))
+                return true;
+            mLog.println("getline failed for player " + pPlayer.mID);
+        }
+        catch (ProtocolException e)
+        {
+            mLog.println(e.getMessage() + " (player " + pPlayer.mID + ")");
+        }
+        catch (IOException e)
+        {
+            mLog.println("getline failed for player " + pPlayer.mID);
+        }
         pPlayer.mGameOver = true;
+        return false;
     }
 
     private int playersLeft()
@@ -415,7 +472,7 @@ class GameServer
         if (pPlayer.mGameOver)
             return;
 
-        pPlayer.mOutputStream.println("ROUND " + pRound + " " + mBirds.length);
+        send(pPlayer, pPlayer.mMessage.set(Message.ROUND).add(pRound).add(mBirds.length));
     }
 
     private void sendBirds(SPlayer pPlayer)
@@ -431,16 +488,16 @@ class GameServer
         if (pPlayer.mNumSent >= lToSend)
             return;
 
-        // Observations header
-        pPlayer.mOutputStream.println("MOVES " + (lToSend - pPlayer.mNumSent));
+        // Number of observations
+        pPlayer.mMessage.set(Message.MOVES).add(lToSend - pPlayer.mNumSent);
 
         // Observations
         for (; pPlayer.mNumSent < lToSend; ++pPlayer.mNumSent)
         {
             for (int i = 0; i < mBirds.length; ++i)
-                pPlayer.mOutputStream.print(mBirds[i].getObservation(pPlayer.mNumSent) + " ");
-            pPlayer.mOutputStream.println();
+                pPlayer.mMessage.add(mBirds[i].getObservation(pPlayer.mNumSent));
         }
+        send(pPlayer, pPlayer.mMessage);
     }
 
     private void sendScores(SPlayer pPlayer)
@@ -448,10 +505,10 @@ class GameServer
         if (pPlayer.mGameOver)
             return;
 
-        pPlayer.mOutputStream.print("SCORE");
+        pPlayer.mMessage.set(Message.SCORE);
         for (SPlayer lPlayer : mPlayers)
-            pPlayer.mOutputStream.print(" " + lPlayer.mScore);
-        pPlayer.mOutputStream.println();
+            pPlayer.mMessage.add(lPlayer.mScore);
+        send(pPlayer, pPlayer.mMessage);
     }
 
     private int mMaxRounds;
@@ -466,4 +523,6 @@ class GameServer
     private BirdSequence[][] mEnvironment;
     private Bird[] mBirds;
     private int[] mBirdSpecies;
+    private PrintStream mLog;
+    private ExecutorService mExecutor;  // threads of the players, null with one player
 }
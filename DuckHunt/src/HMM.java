@@ -1,3 +1,8 @@
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
 
 /**
  * Hidden Markov Model
@@ -5,10 +10,27 @@
  * No checks done for simplicity, but they should be added. The results are
  * unpredictable in case of wrong inputs.
  * 
+ * The parameters are stored in contiguous row-major arrays (A[i*N+j], B[i*K+k]),
+ * together with a transposed copy of A (AT[i*N+j] = A[j][i]) and a symbol-major
+ * copy of B (BT[k*N+i] = B[i][k]), so that all the inner loops have stride 1.
+ * The forward step uses the K emission-weighted transition operators
+ * M_k = A * diag(B[:,k]), stored transposed (MT[k*N*N+i*N+j] = A[j][i] * B[i][k]),
+ * so that filtering one observation is a single matrix-vector product.
+ * The time steps of forward, backward and Baum-Welch run on StateKernels,
+ * written out by hand for the small models (N = 2, 3 or 4).
+ * The logarithms of pi, AT and BT used by Viterbi are computed only when needed
+ * and cached until the parameters change.
+ * 
  * @author fruggeri
  */
 public class HMM {
-	private double pi[], A[][], B[][];
+	private static final int SEQUENCES_PER_TASK = 8;	// granularity of the parallel E-step
+	
+	private double pi[], A[], AT[], B[], BT[], MT[];
+	private double logPi[], logAT[], logBT[];	// lazily computed by logParameters()
+	private volatile boolean logValid;
+	private ConvergencePolicy convergence = ToleranceConvergence.STRICT;
+	private StateKernels kernels;
 	private int N, K;
 	
 	/**
@@ -26,8 +48,13 @@ public class HMM {
 		this.N = N;
 		this.K = K;
 		this.pi = pi;
-		this.A = A;
-		this.B = B;
+		this.A = Matrix.flatten(A);
+		this.B = Matrix.flatten(B);
+		AT = new double[N*N];
+		BT = new double[K*N];
+		MT = new double[K*N*N];
+		kernels = StateKernels.forStates(N);
+		parametersChanged();
 	}
 	
 	/**
@@ -40,12 +67,40 @@ public class HMM {
 	public HMM(int N, int K) {
 		this.N = N;
 		this.K = K;
-		A = Matrix.randomRowStochastic(N, N);
-		B = Matrix.randomRowStochastic(N, K);
+		A = Matrix.flatten(Matrix.randomRowStochastic(N, N));
+		B = Matrix.flatten(Matrix.randomRowStochastic(N, K));
 		pi = new double[N];
 		double[][] tmp = Matrix.randomRowStochastic(1, N);
 		for (int i=0; i<N; i++)
 			this.pi[i] = tmp[0][i];
+		AT = new double[N*N];
+		BT = new double[K*N];
+		MT = new double[K*N*N];
+		kernels = StateKernels.forStates(N);
+		parametersChanged();
+	}
+
+	/**
+	 * Constructs a HMM from contiguous row-major parameters, which are used
+	 * directly (not copied).
+	 * 
+	 * @param pi initial state distribution
+	 * @param A  N x N state transition matrix (row-major)
+	 * @param B  N x K output matrix (row-major)
+	 * @param N  number of states
+	 * @param K  number of output symbols
+	 */
+	HMM(double[] pi, double[] A, double[] B, int N, int K) {
+		this.N = N;
+		this.K = K;
+		this.pi = pi;
+		this.A = A;
+		this.B = B;
+		AT = new double[N*N];
+		BT = new double[K*N];
+		MT = new double[K*N*N];
+		kernels = StateKernels.forStates(N);
+		parametersChanged();
 	}
 
 	/**
@@ -55,9 +110,17 @@ public class HMM {
 	 * @return next observation distribution
 	 */
 	public double[] nextObservationDistribution() {
-		double[] result;
-		result = Matrix.vectorByMatrix(pi, A);
-		result = Matrix.vectorByMatrix(result, B);
+		double[] result = new double[K], tmp = new double[N];
+		
+		// pi * A
+		for (int i=0; i<N; i++)
+			for (int j=0; j<N; j++)
+				tmp[i] += pi[j] * AT[i*N + j];
+		
+		// (pi * A) * B
+		for (int k=0; k<K; k++)
+			for (int i=0; i<N; i++)
+				result[k] += tmp[i] * BT[k*N + i];
 		return result;
 	}
 	
@@ -72,25 +135,66 @@ public class HMM {
 	 */
 	public double[] nextObservationDistribution(int[] observationSequence) {
 		double[] result = new double[K];
-		int T = observationSequence.length;
+		nextObservationDistribution(observationSequence, result, HMMWorkspace.local());
+		return result;
+	}
+	
+	/**
+	 * Like nextObservationDistribution(int[]), but writing the distribution into
+	 * result and using the buffers of the given workspace.
+	 * 
+	 * @param observationSequence observation sequence
+	 * @param result preallocated array of length K filled by the method
+	 * @param ws workspace
+	 */
+	public void nextObservationDistribution(int[] observationSequence, double[] result, HMMWorkspace ws) {
+		nextObservationDistribution(observationSequence, observationSequence.length, result, ws);
+	}
+	
+	/**
+	 * Like nextObservationDistribution(int[], double[], HMMWorkspace), for the
+	 * first T observations of the array (e.g. the live prefix of a bird, without
+	 * copying it).
+	 * 
+	 * @param observationSequence observations
+	 * @param T length of the observation sequence (> 0)
+	 * @param result preallocated array of length K filled by the method
+	 * @param ws workspace
+	 */
+	public void nextObservationDistribution(int[] observationSequence, int T, double[] result, HMMWorkspace ws) {
+		ws.ensure(T, N, K);
+		double[] alpha = ws.alpha;
 
 		// forward algorithm
-		double[][] alpha = new double[T][N];
-		double[] c = new double[T];
-		forward(observationSequence, alpha, c);
+		forward(observationSequence, T, alpha, ws.c);
 		
 		// compute result
-		for (int k=0; k<K; k++) {
-			result[k] = 0;
-			for (int i=0; i<N; i++) {
-				double tmp = 0;
-				for (int j=0; j<N; j++)
-					tmp += A[j][i] * alpha[T-1][j];
-				tmp *= B[i][k];
-				result[k] += tmp;
-			}
-		}
-		return result;
+		predict(alpha, (T-1) * N, result);
+	}
+	
+	/**
+	 * Like nextObservationDistribution(int[], int, double[], HMMWorkspace), for
+	 * observations stored as bytes (e.g. Bird.getObservations()), which are
+	 * widened into a buffer of the workspace.
+	 * 
+	 * @param observationSequence observations
+	 * @param T length of the observation sequence (> 0)
+	 * @param result preallocated array of length K filled by the method
+	 * @param ws workspace
+	 */
+	public void nextObservationDistribution(byte[] observationSequence, int T, double[] result, HMMWorkspace ws) {
+		nextObservationDistribution(ws.symbols(observationSequence, T), T, result, ws);
+	}
+	
+	/**
+	 * Creates a forward filter, which can be fed one observation at a time. The
+	 * filter refers to the current parameters, so it must be recreated after the
+	 * model is learned again.
+	 * 
+	 * @return empty forward filter
+	 */
+	public ForwardState forwardState() {
+		return new ForwardState(this, N, K);
 	}
 	
 	/**
@@ -100,13 +204,37 @@ public class HMM {
 	 * @return log-probability of observation sequence
 	 */
 	public double evaluate(int[] observationSequence) {
-		double result, alpha[][], c[];
-		int T = observationSequence.length;
+		return evaluate(observationSequence, HMMWorkspace.local());
+	}
+	
+	/**
+	 * Computes the log-probability of the observation sequence using the buffers
+	 * of the given workspace.
+	 * 
+	 * @param observationSequence observation sequence
+	 * @param ws workspace
+	 * @return log-probability of observation sequence
+	 */
+	public double evaluate(int[] observationSequence, HMMWorkspace ws) {
+		return evaluate(observationSequence, observationSequence.length, ws);
+	}
+	
+	/**
+	 * Like evaluate(int[], HMMWorkspace), for the first T observations of the
+	 * array.
+	 * 
+	 * @param observationSequence observations
+	 * @param T length of the observation sequence (> 0)
+	 * @param ws workspace
+	 * @return log-probability of observation sequence
+	 */
+	public double evaluate(int[] observationSequence, int T, HMMWorkspace ws) {
+		double result, c[];
 		
 		// forward algorithm
-		alpha = new double[T][N];
-		c = new double[T];
-		forward(observationSequence, alpha, c);
+		ws.ensure(T, N, K);
+		c = ws.c;
+		forward(observationSequence, T, ws.alpha, c);
 		
 		// compute result
 		result = 0;
@@ -116,6 +244,19 @@ public class HMM {
 		return Double.isFinite(result) ? result : Double.NEGATIVE_INFINITY;
 	}
 	
+	/**
+	 * Like evaluate(int[], int, HMMWorkspace), for observations stored as bytes,
+	 * which are widened into a buffer of the workspace.
+	 * 
+	 * @param observationSequence observations
+	 * @param T length of the observation sequence (> 0)
+	 * @param ws workspace
+	 * @return log-probability of observation sequence
+	 */
+	public double evaluate(byte[] observationSequence, int T, HMMWorkspace ws) {
+		return evaluate(ws.symbols(observationSequence, T), T, ws);
+	}
+	
 	/**
 	 * Finds the most likely state sequence given the observations.
 	 * 
@@ -125,60 +266,407 @@ public class HMM {
 	public int[] decode(int[] observationSequence) {
 		int T = observationSequence.length;
 		int[] stateSequence = new int[T];
-		viterbi(observationSequence, stateSequence);
+		decode(observationSequence, stateSequence, HMMWorkspace.local());
 		return stateSequence;
 	}
 	
+	/**
+	 * Finds the most likely state sequence given the observations, using the
+	 * buffers of the given workspace.
+	 * 
+	 * @param observationSequence observation sequence
+	 * @param stateSequence preallocated array filled by the method
+	 * @param ws workspace
+	 * @return log-probability of the most likely state sequence
+	 */
+	public double decode(int[] observationSequence, int[] stateSequence, HMMWorkspace ws) {
+		return decode(observationSequence, observationSequence.length, stateSequence, ws);
+	}
+	
+	/**
+	 * Like decode(int[], int[], HMMWorkspace), for the first T observations of the
+	 * array.
+	 * 
+	 * @param observationSequence observations
+	 * @param T length of the observation sequence (> 0)
+	 * @param stateSequence preallocated array (of length >= T) filled by the method
+	 * @param ws workspace
+	 * @return log-probability of the most likely state sequence
+	 */
+	public double decode(int[] observationSequence, int T, int[] stateSequence, HMMWorkspace ws) {
+		ws.ensure(T, N, K);
+		return viterbi(observationSequence, T, stateSequence, ws);
+	}
+	
+	/**
+	 * Like decode(int[], int, int[], HMMWorkspace), for observations stored as
+	 * bytes, which are widened into a buffer of the workspace.
+	 * 
+	 * @param observationSequence observations
+	 * @param T length of the observation sequence (> 0)
+	 * @param stateSequence preallocated array (of length >= T) filled by the method
+	 * @param ws workspace
+	 * @return log-probability of the most likely state sequence
+	 */
+	public double decode(byte[] observationSequence, int T, int[] stateSequence, HMMWorkspace ws) {
+		return decode(ws.symbols(observationSequence, T), T, stateSequence, ws);
+	}
+	
 	/**
 	 * Estimates the model parameters from the observation sequence.
 	 * 
 	 * @param observationSequence observation sequence
 	 * @param maxIters maximum number of iterations
+	 * @return training report
+	 */
+	public TrainingReport learn(int[] observationSequence, int maxIters) {
+		return learn(observationSequence, maxIters, HMMWorkspace.local());
+	}
+	
+	/**
+	 * Estimates the model parameters from the observation sequence using the
+	 * buffers of the given workspace.
+	 * 
+	 * @param observationSequence observation sequence
+	 * @param maxIters maximum number of iterations
+	 * @param ws workspace
+	 * @return training report
+	 */
+	public TrainingReport learn(int[] observationSequence, int maxIters, HMMWorkspace ws) {
+		return learn(observationSequence, observationSequence.length, maxIters, null, ws);
+	}
+	
+	/**
+	 * Estimates the model parameters from the observation sequence within a time
+	 * budget (anytime learning): before each iteration the clock is checked, and
+	 * learning stops if the iteration would not complete before the deadline,
+	 * keeping the best parameters reached so far.
+	 * 
+	 * @param observationSequence observation sequence
+	 * @param maxIters maximum number of iterations
+	 * @param due deadline (e.g. new Deadline(budgetMs) for a time budget)
+	 * @return training report
+	 */
+	public TrainingReport learn(int[] observationSequence, int maxIters, Deadline due) {
+		return learn(observationSequence, maxIters, due, HMMWorkspace.local());
+	}
+	
+	/**
+	 * Like learn(int[], int, Deadline), but using the buffers of the given
+	 * workspace.
+	 * 
+	 * @param observationSequence observation sequence
+	 * @param maxIters maximum number of iterations
+	 * @param due deadline
+	 * @param ws workspace
+	 * @return training report
+	 */
+	public TrainingReport learn(int[] observationSequence, int maxIters, Deadline due, HMMWorkspace ws) {
+		return learn(observationSequence, observationSequence.length, maxIters, due, ws);
+	}
+	
+	/**
+	 * Like learn(int[], int, Deadline, HMMWorkspace), for the first T
+	 * observations of the array.
+	 * 
+	 * @param observationSequence observations
+	 * @param T length of the observation sequence (> 0)
+	 * @param maxIters maximum number of iterations
+	 * @param due deadline, null for no deadline
+	 * @param ws workspace
+	 * @return training report
+	 */
+	public TrainingReport learn(int[] observationSequence, int T, int maxIters, Deadline due, HMMWorkspace ws) {
+		ws.ensureLearning(T, N, K);
+		return baumWelch(Collections.singletonList(observationSequence), new int[] {T}, maxIters, due, ws, null);
+	}
+	
+	/**
+	 * Like learn(int[], int, int, Deadline, HMMWorkspace), for observations
+	 * stored as bytes, which are widened into a buffer of the workspace.
+	 * 
+	 * @param observationSequence observations
+	 * @param T length of the observation sequence (> 0)
+	 * @param maxIters maximum number of iterations
+	 * @param due deadline, null for no deadline
+	 * @param ws workspace
+	 * @return training report
+	 */
+	public TrainingReport learn(byte[] observationSequence, int T, int maxIters, Deadline due, HMMWorkspace ws) {
+		return learn(ws.symbols(observationSequence, T), T, maxIters, due, ws);
+	}
+	
+	/**
+	 * Estimates the model parameters from multiple independent observation
+	 * sequences (see tutorial by Rabiner): the expected counts of all the
+	 * sequences are pooled in each iteration.
+	 * 
+	 * Learning starts from the current parameters, so the model can be updated
+	 * incrementally when new sequences arrive, by learning again on all the
+	 * sequences with a small number of iterations.
+	 * 
+	 * @param observationSequences observation sequences
+	 * @param maxIters maximum number of iterations
+	 * @return training report
+	 */
+	public TrainingReport learn(List<int[]> observationSequences, int maxIters) {
+		return learn(observationSequences, maxIters, HMMWorkspace.local());
+	}
+	
+	/**
+	 * Like learn(List, int), but using the buffers of the given workspace.
+	 * 
+	 * @param observationSequences observation sequences
+	 * @param maxIters maximum number of iterations
+	 * @param ws workspace
+	 * @return training report
+	 */
+	public TrainingReport learn(List<int[]> observationSequences, int maxIters, HMMWorkspace ws) {
+		return learn(observationSequences, maxIters, null, ws);
+	}
+	
+	/**
+	 * Like learn(List, int), but within a time budget as in
+	 * learn(int[], int, Deadline).
+	 * 
+	 * @param observationSequences observation sequences
+	 * @param maxIters maximum number of iterations
+	 * @param due deadline, null for no deadline
+	 * @param ws workspace
+	 * @return training report
+	 */
+	public TrainingReport learn(List<int[]> observationSequences, int maxIters, Deadline due, HMMWorkspace ws) {
+		int maxT = 0;
+		for (int[] O : observationSequences)
+			maxT = Math.max(maxT, O.length);
+		ws.ensureLearning(maxT, N, K);
+		return baumWelch(observationSequences, null, maxIters, due, ws, null);
+	}
+	
+	/**
+	 * Like learn(List, int), but running the E-step of the different sequences in
+	 * parallel on a pool of the given size, created for the duration of the call.
+	 * 
+	 * @param observationSequences observation sequences
+	 * @param maxIters maximum number of iterations
+	 * @param parallelism number of threads
+	 * @return training report
+	 */
+	public TrainingReport learn(List<int[]> observationSequences, int maxIters, int parallelism) {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			return learn(observationSequences, maxIters, pool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Like learn(List, int), but running the E-step of the different sequences in
+	 * parallel on the given pool. Each task accumulates the expected counts of a
+	 * fixed block of sequences, and the blocks are merged in order, so the result
+	 * does not depend on the pool size nor on the scheduling (but it may differ in
+	 * the last digits from learn(List, int), which sums in a different order).
+	 * 
+	 * @param observationSequences observation sequences
+	 * @param maxIters maximum number of iterations
+	 * @param pool pool running the E-step
+	 * @return training report
+	 */
+	public TrainingReport learn(List<int[]> observationSequences, int maxIters, ForkJoinPool pool) {
+		return learn(observationSequences, maxIters, null, pool);
+	}
+	
+	/**
+	 * Like learn(List, int, ForkJoinPool), but within a time budget as in
+	 * learn(int[], int, Deadline).
+	 * 
+	 * @param observationSequences observation sequences
+	 * @param maxIters maximum number of iterations
+	 * @param due deadline, null for no deadline
+	 * @param pool pool running the E-step
+	 * @return training report
+	 */
+	public TrainingReport learn(List<int[]> observationSequences, int maxIters, Deadline due, ForkJoinPool pool) {
+		HMMWorkspace ws = HMMWorkspace.local();
+		ws.ensureLearning(0, N, K);
+		return baumWelch(observationSequences, null, maxIters, due, ws, pool);
+	}
+	
+	/**
+	 * Sets the stopping criterion of learning (by default learning stops as soon
+	 * as the likelihood does not increase).
+	 * 
+	 * @param convergence convergence policy
+	 */
+	public void setConvergencePolicy(ConvergencePolicy convergence) {
+		this.convergence = convergence;
+	}
+	
+	/**
+	 * @return convergence policy
 	 */
-	public void learn(int[] observationSequence, int maxIters) {
-		baumWelch(observationSequence, maxIters);
+	public ConvergencePolicy getConvergencePolicy() {
+		return convergence;
+	}
+	
+	/**
+	 * Raises every probability of pi, A and B to at least floor, and normalizes
+	 * them again, so that no observation sequence is impossible. Baum-Welch keeps
+	 * the probabilities that are 0: a model must be smoothed before being
+	 * refined on sequences with something it has never seen.
+	 * 
+	 * @param floor smallest probability, less than 1/N and 1/K
+	 */
+	public void smooth(double floor) {
+		smooth(pi, 0, N, floor);
+		for (int i=0; i<N; i++) {
+			smooth(A, i*N, N, floor);
+			smooth(B, i*K, K, floor);
+		}
+		parametersChanged();
+	}
+	
+	/**
+	 * @return true if pi and the rows of A and B are probability distributions
+	 *         (up to rounding), false e.g. if a parameter is NaN
+	 */
+	boolean isStochastic() {
+		boolean result = isDistribution(pi, 0, N);
+		for (int i=0; i<N; i++)
+			result &= isDistribution(A, i*N, N) && isDistribution(B, i*K, K);
+		return result;
+	}
+	
+	private static boolean isDistribution(double[] p, int off, int n) {
+		double sum = 0;
+		for (int j=0; j<n; j++) {
+			if (!(p[off + j] >= 0))
+				return false;
+			sum += p[off + j];
+		}
+		return Math.abs(sum - 1) <= 1e-9 * n;
+	}
+	
+	/**
+	 * Raises the probabilities of a distribution to at least floor and
+	 * normalizes it again.
+	 */
+	private static void smooth(double[] p, int off, int n, double floor) {
+		double sum = 0;
+		for (int j=0; j<n; j++)
+			sum += p[off + j] = Math.max(p[off + j], floor);
+		for (int j=0; j<n; j++)
+			p[off + j] /= sum;
 	}
 	
 	/**
 	 * Forward algorithm (a.k.a. alpha-pass).
 	 * 
 	 * @param O observation sequence
-	 * @param alpha preallocated matrix filled by the method
+	 * @param T length of the observation sequence
+	 * @param alpha preallocated T x N matrix (row-major) filled by the method
 	 * @param c preallocated array filled by the method
 	 */
-	private void forward(int[] O, double[][] alpha, double[] c) {
-		int T = O.length;
-		
+	private void forward(int[] O, int T, double[] alpha, double[] c) {
 		// compute alpha_0
-		c[0] = 0;
+		c[0] = forwardInit(O[0], alpha, 0);
+		
+		// 0 < t < T
+		for (int t=1; t<T; t++)
+			c[t] = forwardStep(O[t], alpha, (t-1) * N, alpha, t * N);
+	}
+	
+	/**
+	 * Computes and scales alpha_0 (first step of the forward algorithm).
+	 * 
+	 * @param o first observation
+	 * @param alpha array where alpha_0 is written
+	 * @param off offset of alpha_0 in alpha
+	 * @return scaling factor c_0
+	 */
+	double forwardInit(int o, double[] alpha, int off) {
+		int b = o * N;
+		double c = 0;
 		for (int i=0; i<N; i++) {
-			alpha[0][i] = pi[i] * B[i][O[0]];
-			c[0] += alpha[0][i];
+			alpha[off + i] = pi[i] * BT[b + i];
+			c += alpha[off + i];
 		}
 		
 		// scale alpha_0
-		if (c[0] != 0)
-			c[0] = 1/c[0];
+		if (c != 0)
+			c = 1/c;
 		for (int i=0; i<N; i++)
-			alpha[0][i] *= c[0];
-		
-		// 0 < t < T
-		for (int t=1; t<T; t++) {
-			// compute alpha_t
-			c[t] = 0;
-			for (int i=0; i<N; i++) {
-				alpha[t][i] = 0;
-				for (int j=0; j<N; j++)
-					alpha[t][i] += alpha[t-1][j] * A[j][i];
-				alpha[t][i] *= B[i][O[t]];
-				c[t] += alpha[t][i];
-			}
-			
-			// scale alpha_t
-			if (c[t] != 0)
-				c[t] = 1/c[t];
+			alpha[off + i] *= c;
+		return c;
+	}
+	
+	/**
+	 * Computes and scales alpha_t from alpha_t-1 (induction step of the forward
+	 * algorithm). The two vectors must not overlap.
+	 * 
+	 * @param o observation at time t
+	 * @param prev array containing alpha_t-1
+	 * @param prevOff offset of alpha_t-1 in prev
+	 * @param alpha array where alpha_t is written
+	 * @param off offset of alpha_t in alpha
+	 * @return scaling factor c_t
+	 */
+	double forwardStep(int o, double[] prev, int prevOff, double[] alpha, int off) {
+		return kernels.forwardStep(MT, o * N * N, prev, prevOff, alpha, off);
+	}
+	
+	/**
+	 * Computes the distribution of the next observation from the (scaled) alpha of
+	 * the last time step, in O(N^2 + N*K): each component of the predictive state
+	 * vector alpha * A is computed once and spread over the K symbols.
+	 * 
+	 * @param alpha array containing alpha_T-1
+	 * @param off offset of alpha_T-1 in alpha
+	 * @param result preallocated array of length K filled by the method
+	 */
+	void predict(double[] alpha, int off, double[] result) {
+		for (int k=0; k<K; k++)
+			result[k] = 0;
+		for (int i=0; i<N; i++) {
+			double tmp = 0;
+			for (int j=0; j<N; j++)
+				tmp += AT[i*N + j] * alpha[off + j];
+			for (int k=0; k<K; k++)
+				result[k] += tmp * BT[k*N + i];
+		}
+	}
+	
+	/**
+	 * Computes the predictive state vector alpha * A (distribution of the next
+	 * hidden state) from the (scaled) alpha of the last time step.
+	 * 
+	 * @param alpha array containing alpha_T-1
+	 * @param off offset of alpha_T-1 in alpha
+	 * @param state preallocated array of length N filled by the method
+	 */
+	void predictState(double[] alpha, int off, double[] state) {
+		for (int i=0; i<N; i++) {
+			double tmp = 0;
+			for (int j=0; j<N; j++)
+				tmp += AT[i*N + j] * alpha[off + j];
+			state[i] = tmp;
+		}
+	}
+	
+	/**
+	 * Computes the distribution of the next observation from a predictive state
+	 * vector (see predictState), in O(N*K).
+	 * 
+	 * @param state predictive state vector
+	 * @param result preallocated array of length K filled by the method
+	 */
+	void emit(double[] state, double[] result) {
+		for (int k=0; k<K; k++) {
+			double tmp = 0;
 			for (int i=0; i<N; i++)
-				alpha[t][i] *= c[t];
+				tmp += state[i] * BT[k*N + i];
+			result[k] = tmp;
 		}
 	}
 	
@@ -186,51 +674,58 @@ public class HMM {
 	 * Viterbi algorithm.
 	 * 
 	 * @param O observation sequence
+	 * @param T length of the observation sequence
 	 * @param stateSequence preallocated array filled by the method
+	 * @param ws workspace providing the buffers
 	 * @return log probability of the most likely state sequence
 	 */
-	private double viterbi(int[] O, int[] stateSequence) {
-		int T = O.length;
-		double[][] delta = new double[T][N];
-		int[][] deltaIdx = new int[T][N];
+	private double viterbi(int[] O, int T, int[] stateSequence, HMMWorkspace ws) {
+		int last = (T-1) * N;
+		double[] delta = ws.delta;
+		int[] deltaIdx = ws.deltaIdx;
 		double logProb = Double.NEGATIVE_INFINITY;
 		
+		logParameters();
+		
 		// compute delta_0
 		for (int i = 0; i < N; i++)
-			delta[0][i] = Math.log(pi[i] * B[i][O[0]]);
+			delta[i] = logPi[i] + logBT[O[0]*N + i];
 
 		// compute delta_t, 0<t<T 
 		for (int t = 1; t < T; t++) {
+			int prev = (t-1) * N, cur = t * N, b = O[t] * N;
 			for (int i = 0; i < N; i++) {
 				// initialize using state 0
-				delta[t][i] = delta[t - 1][0] + Math.log(A[0][i]) + Math.log(B[i][O[t]]);
-				deltaIdx[t][i] = 0;
+				double max = delta[prev] + logAT[i*N];
+				int maxIdx = 0;
 
 				// search max
 				for (int j = 1; j < N; j++) {
-					double tmp = delta[t - 1][j] + Math.log(A[j][i]) + Math.log(B[i][O[t]]);
-					if (tmp > delta[t][i]) {
-						delta[t][i] = tmp;
-						deltaIdx[t][i] = j;
+					double tmp = delta[prev + j] + logAT[i*N + j];
+					if (tmp > max) {
+						max = tmp;
+						maxIdx = j;
 					}
 				}
+				delta[cur + i] = max + logBT[b + i];
+				deltaIdx[cur + i] = maxIdx;
 			}
 		}
 
 		// search last state
 		stateSequence[T-1] = 0; // initialize to state 0
 		for (int i = 1; i < N; i++) // search max delta
-			if (delta[T-1][i] > delta[T-1][stateSequence[T-1]])
+			if (delta[last + i] > delta[last + stateSequence[T-1]])
 				stateSequence[T - 1] = i;
 
 		// backtrack
 		for (int t = T - 2; t >= 0; t--)
-			stateSequence[t] = deltaIdx[t+1][stateSequence[t+1]];
+			stateSequence[t] = deltaIdx[(t+1)*N + stateSequence[t+1]];
 		
 		// compute log probability
 		for (int i=0; i<N; i++)
-			if (delta[T-1][i] > logProb)
-				logProb = delta[T-1][i];
+			if (delta[last + i] > logProb)
+				logProb = delta[last + i];
 		return logProb;
 	}
 	
@@ -238,111 +733,347 @@ public class HMM {
 	 * Backward algorithm (a.k.a. beta-pass).
 	 * 
 	 * @param O observation sequence
-	 * @param beta preallocated matrix filled by the method
+	 * @param T length of the observation sequence
+	 * @param beta preallocated T x N matrix (row-major) filled by the method
 	 * @param c scaling factors found with forward algorithm
 	 */
-	private void backward(int[] O, double[][] beta, double[] c) {
-		int T = O.length;
-		
+	private void backward(int[] O, int T, double[] beta, double[] c) {
 		// compute beta_T-1 scaled by c_T-1
 		for (int i=0; i<N; i++)
-			beta[T-1][i] = c[T-1];
+			beta[(T-1)*N + i] = c[T-1];
 		
 		// compute beta_t scaled by c_t, 0<=t<T-1
-		for (int t=T-2; t>=0; t--) {
-			for (int i=0; i<N; i++) {
-				beta[t][i] = 0;
-				for (int j=0; j<N; j++)
-					beta[t][i] += A[i][j] * B[j][O[t+1]] * beta[t+1][j];
-				beta[t][i] *= c[t];
-			}
-		}
+		for (int t=T-2; t>=0; t--)
+			kernels.backwardStep(A, BT, O[t+1] * N, beta, (t+1) * N, t * N, c[t]);
 	}
 	
 	/**
 	 * Baum-Welch algorithm.
 	 * 
-	 * @param O observation sequence
+	 * The expected transition and emission counts are accumulated directly during
+	 * the E-step, so no di-gamma (T x N x N) or gamma (T x N) matrix is stored.
+	 * 
+	 * Learning stops when the likelihood does not increase, or when the
+	 * convergence policy finds no significant progress in more than its patience
+	 * consecutive iterations. With a deadline, an iteration is started only if the
+	 * clock says it can complete in time, estimating its duration as the longest
+	 * one so far. If the last iteration decreased the likelihood, the best
+	 * parameters evaluated are restored.
+	 * 
+	 * A sequence that is impossible for the current parameters (probability 0)
+	 * adds no counts and makes the log-likelihood -Infinity: the iteration then
+	 * re-estimates the parameters from the other sequences, but counts as no
+	 * progress (learning stops) and never as the best one. See smooth.
+	 * 
+	 * @param sequences observation sequences
+	 * @param lengths lengths of the sequences, null if they are the whole arrays
 	 * @param maxIters maximum number of iterations
+	 * @param due deadline, null for no deadline
+	 * @param ws workspace providing the buffers
+	 * @param pool pool running the E-step, null to run it in the calling thread
+	 * @return training report
 	 */
-	private void baumWelch(int[] O, int maxIters) {
-		int T = O.length, iters = 0;
-		double[] c = new double[T];
-		double[][] alpha = new double[T][N];
-		double[][] beta = new double[T][N];
-		double[][] gamma = new double[T][N];
-		double[][][] digamma = new double[T][N][N];
-		double numer, denom, logProb = Double.NEGATIVE_INFINITY, oldLogProb;
+	private TrainingReport baumWelch(List<int[]> sequences, int[] lengths, int maxIters, Deadline due,
+			HMMWorkspace ws, ForkJoinPool pool) {
+		int iters = 0, stalled = 0;
+		boolean deadlineReached = false;
+		long begin = System.nanoTime(), end = 0, iterTime = 0;
+		ExpectedCounts counts = ws.counts, blockCounts[] = null;
+		double logProb = Double.NEGATIVE_INFINITY, oldLogProb, bestLogProb = Double.NEGATIVE_INFINITY;
+		
+		if (due != null)
+			end = begin + due.remainingMs() * 1000000;
+		
+		if (pool != null) {
+			blockCounts = new ExpectedCounts[(sequences.size() + SEQUENCES_PER_TASK - 1) / SEQUENCES_PER_TASK];
+			for (int i = 0; i < blockCounts.length; i++)
+				blockCounts[i] = new ExpectedCounts(N, K);
+		}
 
 		do {
-			oldLogProb = logProb;
-
-			// alpha-pass
-			forward(O, alpha, c);
-
-			// beta-pass
-			backward(O, beta, c);
-
-			// compute di-gamma and gamma
-			for (int t = 0; t < T - 1; t++) {
-				for (int i = 0; i < N; i++) {
-					gamma[t][i] = 0;
-					for (int j = 0; j < N; j++) {
-						digamma[t][i][j] = alpha[t][i] * A[i][j] * B[j][O[t + 1]] * beta[t + 1][j];
-						gamma[t][i] += digamma[t][i][j];
-					}
-				}
+			// enough time for another iteration?
+			long start = System.nanoTime();
+			if (due != null && start + iterTime > end) {
+				deadlineReached = true;
+				break;
 			}
-			// special case for gammaT-1(i)
-			for (int i = 0; i < N; i++)
-				gamma[T - 1][i] = alpha[T - 1][i];
-
-			// re-estimate pi
-			for (int i = 0; i < N; i++)
-				pi[i] = gamma[0][i];
+			oldLogProb = logProb;
 			
-			// re-estimate A
-			for (int i = 0; i < N; i++) {
-				denom = 0.0;
-				for (int t = 0; t < T - 1; t++)
-					denom += gamma[t][i];
-				for (int j = 0; j < N; j++) {
-					numer = 0.0;
-					for (int t = 0; t < T - 1; t++)
-						numer += digamma[t][i][j];
-					A[i][j] = numer / denom;
-				}
+			// E-step
+			counts.clear();
+			if (pool == null) {
+				logProb = 0.0;
+				for (int s = 0; s < sequences.size(); s++)
+					logProb += expectation(sequences.get(s), length(sequences, lengths, s), ws, counts);
+			} else {
+				logProb = expectation(sequences, lengths, pool, blockCounts, counts);
 			}
 			
-			// re-estimate B
-			for (int i = 0; i < N; i++) {
-				denom = 0.0;
-				for (int t = 0; t < T; t++)
-					denom += gamma[t][i];
-				for (int j = 0; j < K; j++) {
-					numer = 0.0;
-					for (int t = 0; t < T; t++)
-						if (O[t] == j)
-							numer += gamma[t][i];
-					B[i][j] = numer / denom;
-				}
+			// nothing to learn from
+			if (counts.sequences == 0)
+				break;
+			
+			// keep the parameters just evaluated if they are the best so far
+			if (Double.isFinite(logProb) && logProb > bestLogProb) {
+				bestLogProb = logProb;
+				saveParameters(ws.parameters);
 			}
-
-			// repeat?
-			logProb = 0.0;
-			for (int i = 0; i < T; i++)
-				logProb += Math.log(c[i]);
-			logProb = -logProb;
+			
+			// M-step
+			double parameterChange = maximization(counts);
 			iters++;
-		} while (iters < maxIters && logProb > oldLogProb);
+			iterTime = Math.max(iterTime, System.nanoTime() - start);
+			
+			// convergence
+			if (convergence.isProgress(oldLogProb, logProb, parameterChange))
+				stalled = 0;
+			else
+				stalled++;
+		} while (iters < maxIters && Double.isFinite(logProb) && logProb > oldLogProb
+				&& stalled <= convergence.getPatience());
+		
+		// the last iteration made the model worse
+		if (logProb < bestLogProb)
+			restoreParameters(ws.parameters);
+		return new TrainingReport(iters, bestLogProb, System.nanoTime() - begin, deadlineReached);
+	}
+	
+	/**
+	 * E-step of Baum-Welch: runs the alpha-pass and the beta-pass and adds the
+	 * expected counts of the observation sequence to counts.
+	 * 
+	 * @param O observation sequence
+	 * @param T length of the observation sequence
+	 * @param ws workspace providing the buffers
+	 * @param counts expected counts updated by the method (unchanged if the
+	 *               sequence is impossible)
+	 * @return log-probability of the observation sequence, -Infinity if it is
+	 *         impossible
+	 */
+	private double expectation(int[] O, int T, HMMWorkspace ws, ExpectedCounts counts) {
+		double[] c = ws.c;
+		double[] alpha = ws.alpha;
+		double[] beta = ws.beta;
+		double logProb;
+		
+		// alpha-pass
+		forward(O, T, alpha, c);
+		
+		// compute log-probability (c_t is 0 from the first observation that cannot
+		// be emitted on)
+		logProb = 0.0;
+		for (int t = 0; t < T; t++) {
+			if (c[t] == 0)
+				return Double.NEGATIVE_INFINITY;
+			logProb -= Math.log(c[t]);
+		}
+
+		// beta-pass
+		backward(O, T, beta, c);
+
+		// accumulate di-gamma and gamma
+		for (int t = 0; t < T - 1; t++)
+			kernels.expectationStep(alpha, t * N, A, BT, O[t + 1] * N, beta, (t + 1) * N, O[t] * N, t == 0, counts);
+		// special case for gammaT-1(i)
+		int last = (T - 1) * N, e = O[T - 1] * N;
+		for (int i = 0; i < N; i++) {
+			if (T == 1)
+				counts.initial[i] += alpha[last + i];
+			counts.emissions[e + i] += alpha[last + i];
+			counts.emissionsFrom[i] += alpha[last + i];
+		}
+		
+		counts.sequences++;
+		return logProb;
+	}
+	
+	/**
+	 * Parallel E-step of Baum-Welch: the sequences are split in blocks of
+	 * SEQUENCES_PER_TASK, each block is processed by a task of the pool with the
+	 * workspace of its worker, and the counts of the blocks are merged in order.
+	 * 
+	 * @param sequences observation sequences
+	 * @param lengths lengths of the sequences, null if they are the whole arrays
+	 * @param pool pool running the tasks
+	 * @param blockCounts preallocated expected counts, one for each block
+	 * @param counts expected counts updated by the method
+	 * @return log-probability of the observation sequences
+	 */
+	private double expectation(List<int[]> sequences, int[] lengths, ForkJoinPool pool,
+			ExpectedCounts[] blockCounts, ExpectedCounts counts) {
+		int nBlocks = blockCounts.length;
+		double[] blockLogProb = new double[nBlocks];
+		ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[nBlocks];
+		
+		// fork
+		for (int i = 0; i < nBlocks; i++) {
+			final int block = i;
+			tasks[i] = pool.submit(() -> {
+				int from = block * SEQUENCES_PER_TASK;
+				int to = Math.min(from + SEQUENCES_PER_TASK, sequences.size());
+				int maxT = 0;
+				for (int s = from; s < to; s++)
+					maxT = Math.max(maxT, length(sequences, lengths, s));
+				HMMWorkspace ws = HMMWorkspace.local();
+				ws.ensureLearning(maxT, N, K);
+				
+				blockCounts[block].clear();
+				for (int s = from; s < to; s++)
+					blockLogProb[block] += expectation(sequences.get(s), length(sequences, lengths, s), ws,
+							blockCounts[block]);
+			});
+		}
+		
+		// join and merge in order
+		double logProb = 0.0;
+		for (int i = 0; i < nBlocks; i++) {
+			tasks[i].join();
+			logProb += blockLogProb[i];
+			counts.add(blockCounts[i]);
+		}
+		return logProb;
+	}
+	
+	private static int length(List<int[]> sequences, int[] lengths, int s) {
+		return lengths == null ? sequences.get(s).length : lengths[s];
+	}
+	
+	/**
+	 * M-step of Baum-Welch: re-estimates the model parameters from the expected
+	 * counts.
+	 * 
+	 * @param counts expected counts
+	 * @return largest absolute change of a parameter
+	 */
+	private double maximization(ExpectedCounts counts) {
+		double change = 0, old;
+		
+		// re-estimate pi
+		for (int i = 0; i < N; i++) {
+			old = pi[i];
+			pi[i] = counts.initial[i] / counts.sequences;
+			change = Math.max(change, Math.abs(pi[i] - old));
+		}
+		
+		// re-estimate A
+		for (int i = 0; i < N; i++)
+			for (int j = 0; j < N; j++) {
+				old = A[i*N + j];
+				A[i*N + j] = counts.transitions[i*N + j] / counts.transitionsFrom[i];
+				change = Math.max(change, Math.abs(A[i*N + j] - old));
+			}
+		
+		// re-estimate B
+		for (int i = 0; i < N; i++)
+			for (int k = 0; k < K; k++) {
+				old = B[i*K + k];
+				B[i*K + k] = counts.emissions[k*N + i] / counts.emissionsFrom[i];
+				change = Math.max(change, Math.abs(B[i*K + k] - old));
+			}
+		parametersChanged();
+		return change;
+	}
+	
+	/**
+	 * Copies pi, A and B into a buffer of length N + N*N + N*K.
+	 */
+	private void saveParameters(double[] buffer) {
+		System.arraycopy(pi, 0, buffer, 0, N);
+		System.arraycopy(A, 0, buffer, N, N*N);
+		System.arraycopy(B, 0, buffer, N + N*N, N*K);
+	}
+	
+	/**
+	 * Copies pi, A and B back from a buffer filled by saveParameters.
+	 */
+	private void restoreParameters(double[] buffer) {
+		System.arraycopy(buffer, 0, pi, 0, N);
+		System.arraycopy(buffer, N, A, 0, N*N);
+		System.arraycopy(buffer, N + N*N, B, 0, N*K);
+		parametersChanged();
+	}
+	
+	/**
+	 * Refreshes the transposed copies AT and BT and the operators MT, and
+	 * invalidates the cached logarithms. To be called whenever pi, A or B change.
+	 */
+	private void parametersChanged() {
+		Matrix.transpose(A, N, N, AT);
+		Matrix.transpose(B, N, K, BT);
+		for (int k=0, m=0; k<K; k++)
+			for (int i=0; i<N; i++) {
+				double b = BT[k*N + i];
+				for (int j=0; j<N; j++, m++)
+					MT[m] = AT[i*N + j] * b;
+			}
+		logValid = false;
+	}
+	
+	/**
+	 * Computes the logarithms of pi, AT and BT, unless they are already cached.
+	 */
+	private void logParameters() {
+		if (logValid)
+			return;
+		synchronized (this) {
+			if (logValid)
+				return;
+			if (logPi == null) {
+				logPi = new double[N];
+				logAT = new double[N*N];
+				logBT = new double[K*N];
+			}
+			for (int i=0; i<N; i++)
+				logPi[i] = Math.log(pi[i]);
+			for (int i=0; i<N*N; i++)
+				logAT[i] = Math.log(AT[i]);
+			for (int i=0; i<K*N; i++)
+				logBT[i] = Math.log(BT[i]);
+			logValid = true;
+		}
+	}
+	
+	/**
+	 * @return number of states
+	 */
+	public int getNumStates() {
+		return N;
+	}
+	
+	/**
+	 * @return number of output symbols
+	 */
+	public int getNumSymbols() {
+		return K;
+	}
+	
+	/**
+	 * @return initial state distribution (not a copy: do not modify)
+	 */
+	double[] getPi() {
+		return pi;
+	}
+	
+	/**
+	 * @return state transition matrix, row-major (not a copy: do not modify)
+	 */
+	double[] getA() {
+		return A;
+	}
+	
+	/**
+	 * @return output matrix, row-major (not a copy: do not modify)
+	 */
+	double[] getB() {
+		return B;
 	}
 	
 	@Override
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
-		sb.append(Matrix.matrixToString(A));
+		sb.append(Matrix.matrixToString(A, N, N));
 		sb.append("\n");
-		sb.append(Matrix.matrixToString(B));
+		sb.append(Matrix.matrixToString(B, N, K));
 		return sb.toString();
 	}
 	
@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary file of HMMs with their training reports, read through a memory
+ * mapping: opening a file only indexes the models, which are decoded when
+ * requested.
+ *
+ * Format (version 1, big-endian):
+ * int magic ("HMMB"), int version, int number of models, then for each model
+ * int N, int K (N = 0 for a missing model, with nothing else), int iterations,
+ * double log-likelihood, long wall time (ns), byte deadline reached (0/1),
+ * double pi[N], double A[N*N], double B[N*K] (row-major).
+ *
+ * The parameters are stored as raw IEEE 754 bits, so a loaded model is exactly
+ * the one saved.
+ *
+ * @author fruggeri
+ */
+public class HMMFile {
+	private static final int MAGIC = 0x484D4D42;	// "HMMB"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 3 * 4;
+	private static final int RECORD_HEADER_SIZE = 3 * 4 + 8 + 8 + 1;
+
+	private final ByteBuffer buffer;
+	private final int[] offsets;		// offset of each model record
+
+	private HMMFile(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException("Not a HMM file");
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException("Unsupported HMM file version: " + buffer.getInt(4));
+
+		// index the models
+		int count = buffer.getInt(8);
+		if (count < 0 || count > (buffer.limit() - HEADER_SIZE) / 8)
+			throw new IOException("Truncated HMM file");
+		offsets = new int[count];
+		int offset = HEADER_SIZE;
+		for (int m=0; m<offsets.length; m++) {
+			offsets[m] = offset;
+			if (offset + 8 > buffer.limit())
+				throw new IOException("Truncated HMM file");
+			int N = buffer.getInt(offset), K = buffer.getInt(offset + 4);
+			if (N == 0) {
+				offset += 8;
+				continue;
+			}
+
+			// the sizes come from the file: computed in long, so that no value of N
+			// and K can overflow them, and checked against the rest of the file
+			long available = (buffer.limit() - (long) offset - RECORD_HEADER_SIZE) / 8;	// doubles
+			if (N < 0 || K <= 0 || available < 0 || N > available)
+				throw new IOException("Corrupt HMM file");
+			long parameters = N + (long) N * N + (long) N * K;
+			if (parameters > available)
+				throw new IOException("Corrupt HMM file");
+			offset += RECORD_HEADER_SIZE + 8 * (int) parameters;
+		}
+	}
+
+	/**
+	 * Opens a file of HMMs.
+	 *
+	 * @param fileName file name
+	 * @return file of HMMs
+	 * @throws IOException if the file cannot be read or is not a valid file of
+	 *                     HMMs
+	 */
+	public static HMMFile map(String fileName) throws IOException {
+		// the mapping stays valid after the channel is closed
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			return new HMMFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * @return number of models (including the missing ones)
+	 */
+	public int size() {
+		return offsets.length;
+	}
+
+	/**
+	 * Decodes a model.
+	 *
+	 * @param m index of the model
+	 * @return model, null if missing
+	 */
+	public HMM getModel(int m) {
+		int offset = offsets[m];
+		int N = buffer.getInt(offset), K = buffer.getInt(offset + 4);
+		if (N == 0)
+			return null;
+
+		ByteBuffer parameters = buffer.duplicate();
+		parameters.position(offset + RECORD_HEADER_SIZE);
+		double[] pi = new double[N], A = new double[N*N], B = new double[N*K];
+		parameters.slice().asDoubleBuffer().get(pi).get(A).get(B);
+		return new HMM(pi, A, B, N, K);
+	}
+
+	/**
+	 * Decodes the training report of a model.
+	 *
+	 * @param m index of the model
+	 * @return training report, null if the model is missing
+	 */
+	public TrainingReport getReport(int m) {
+		int offset = offsets[m];
+		if (buffer.getInt(offset) == 0)
+			return null;
+		return new TrainingReport(buffer.getInt(offset + 8), buffer.getDouble(offset + 12),
+				buffer.getLong(offset + 20), buffer.get(offset + 28) != 0);
+	}
+
+	/**
+	 * Writes a file of HMMs. The file is written next to the destination and then
+	 * renamed, so it is never left half-written.
+	 *
+	 * @param fileName file name
+	 * @param models models (null elements are written as missing)
+	 * @param reports training reports of the models, or null (as the elements)
+	 *                if not available
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(String fileName, HMM[] models, TrainingReport[] reports) throws IOException {
+		long size = HEADER_SIZE;
+		for (HMM hmm : models) {
+			long N = hmm == null ? 0 : hmm.getNumStates(), K = hmm == null ? 0 : hmm.getNumSymbols();
+			size += N == 0 ? 8 : RECORD_HEADER_SIZE + 8 * (N + N*N + N*K);
+		}
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("HMM file too large: " + size + " bytes");
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(models.length);
+		for (int m=0; m<models.length; m++) {
+			HMM hmm = models[m];
+			if (hmm == null) {
+				buffer.putInt(0).putInt(0);
+				continue;
+			}
+			TrainingReport report = reports == null ? null : reports[m];
+			buffer.putInt(hmm.getNumStates()).putInt(hmm.getNumSymbols());
+			if (report == null)
+				buffer.putInt(0).putDouble(Double.NaN).putLong(0).put((byte) 0);
+			else
+				buffer.putInt(report.getIterations()).putDouble(report.getLogLikelihood())
+						.putLong(report.getWallTimeNanos()).put((byte) (report.isDeadlineReached() ? 1 : 0));
+			for (double[] parameters : new double[][] {hmm.getPi(), hmm.getA(), hmm.getB()})
+				for (double p : parameters)
+					buffer.putDouble(p);
+		}
+		buffer.flip();
+
+		Path path = Paths.get(fileName).toAbsolutePath();
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
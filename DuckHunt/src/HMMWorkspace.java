@@ -0,0 +1,84 @@
+/**
+ * Reusable buffers for the HMM algorithms (forward, backward, Viterbi and
+ * Baum-Welch). The buffers grow on demand and are never shrunk, so once a
+ * workspace has seen the longest sequence the algorithms stop allocating.
+ *
+ * A workspace is not thread-safe: use one per thread, e.g. the one returned by
+ * local().
+ *
+ * @author fruggeri
+ */
+public class HMMWorkspace {
+	private static final ThreadLocal<HMMWorkspace> LOCAL = ThreadLocal.withInitial(HMMWorkspace::new);
+
+	double[] c = new double[0];
+	double[] alpha = new double[0];
+	double[] beta = new double[0];
+	double[] delta = new double[0];
+	int[] deltaIdx = new int[0];
+	ExpectedCounts counts;
+	double[] parameters = new double[0];	// copy of the best parameters during learning
+	int[] symbols = new int[0];			// byte observations widened for the algorithms
+
+	/**
+	 * Gets the workspace of the current thread.
+	 *
+	 * @return workspace of the current thread
+	 */
+	public static HMMWorkspace local() {
+		return LOCAL.get();
+	}
+
+	/**
+	 * Makes the buffers for forward, backward and Viterbi large enough for a
+	 * sequence of length T and a model with N states and K output symbols.
+	 *
+	 * @param T length of the observation sequence
+	 * @param N number of states
+	 * @param K number of output symbols
+	 */
+	void ensure(int T, int N, int K) {
+		c = grow(c, T);
+		alpha = grow(alpha, T*N);
+		beta = grow(beta, T*N);
+		delta = grow(delta, T*N);
+		deltaIdx = grow(deltaIdx, T*N);
+	}
+
+	/**
+	 * Like ensure, but including the expected counts needed by Baum-Welch.
+	 */
+	void ensureLearning(int T, int N, int K) {
+		ensure(T, N, K);
+		if (counts == null || counts.N != N || counts.K != K)
+			counts = new ExpectedCounts(N, K);
+		parameters = grow(parameters, N + N*N + N*K);
+	}
+
+	/**
+	 * Widens observations stored as bytes into the symbols buffer (which grows
+	 * on demand, so no allocation once it is large enough).
+	 *
+	 * @param O observations
+	 * @param T number of observations to widen
+	 * @return the symbols buffer, whose first T entries are the observations
+	 */
+	int[] symbols(byte[] O, int T) {
+		symbols = grow(symbols, T);
+		for (int t=0; t<T; t++)
+			symbols[t] = O[t];
+		return symbols;
+	}
+
+	private static double[] grow(double[] buffer, int size) {
+		if (buffer.length >= size)
+			return buffer;
+		return new double[Math.max(size, 2 * buffer.length)];
+	}
+
+	private static int[] grow(int[] buffer, int size) {
+		if (buffer.length >= size)
+			return buffer;
+		return new int[Math.max(size, 2 * buffer.length)];
+	}
+}
@@ -1,7 +1,5 @@
-import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 
 public class Main
 {
@@ -15,13 +13,17 @@ public class Main
     public static void main(String[] args) throws Exception {
         // Parse parameters
         boolean lCreateServer = false;
+        boolean lBinary = false;
         String lLoadFilename = "SouthEmissions.in";
+        String lModelsFilename = null;
 
         for (int i = 0; i < args.length; ++i) {
             String param = args[i];
 
             if (param.equals("server") || param.equals("s")) {
                 lCreateServer = true;
+            } else if (param.equals("binary") || param.equals("b")) {
+                lBinary = true;
             } else if (param.equals("verbose") || param.equals("v")) {
                 gVerbose = true;
             } else if (param.equals("load") || param.equals("l")) {
@@ -33,21 +35,35 @@ public class Main
                     System.err.println("Observations file must be given as an argument");
                     System.exit(-1);
                 }
+            } else if (param.equals("models") || param.equals("m")) {
+                ++i;
+                if (i < args.length)
+                    lModelsFilename = args[i];
+                else
+                {
+                    System.err.println("Species models file must be given as an argument");
+                    System.exit(-1);
+                }
             } else {
                 System.err.println("Unknown parameter: '" + args[i] + "'");
                 System.exit(-1);
             }
         }
 
+        // Messages in the text protocol or in binary (both ends must agree)
+        Transport lTransport;
+        if (lBinary)
+            lTransport = new BinaryTransport(System.in, System.out);
+        else
+            lTransport = new TextTransport(System.in, System.out);
+
         /**
          * Start the program either as a server or a client
          */
         if (lCreateServer)
         {
             // Create a server
-            GameServer lGameServer = new GameServer(
-                    new BufferedReader(new InputStreamReader(System.in)),
-                    System.out);
+            GameServer lGameServer = new GameServer(lTransport);
 
             if (lLoadFilename != null)
             {
@@ -58,17 +74,15 @@ public class Main
 
             // Run the server
             lGameServer.run();
+            lTransport.close();
         }
         else
         {
             // Create the player
-            Player lPlayer = new Player();
+            Player lPlayer = new Player(lModelsFilename);
 
             // Create a client with the player
-            Client lClient = new Client(
-                    lPlayer,
-                    new BufferedReader(new InputStreamReader(System.in)),
-                    System.out);
+            Client lClient = new Client(lPlayer, lTransport);
 
             // Run the client
             lClient.run();
@@ -36,6 +36,37 @@ public abstract class Matrix {
 		return sb.toString();
 	}
 	
+	/**
+	 * Copies a matrix into a contiguous row-major array.
+	 */
+	public static double[] flatten(double[][] m) {
+		int cols = m[0].length;
+		double[] result = new double[m.length * cols];
+		for (int i=0; i<m.length; i++)
+			System.arraycopy(m[i], 0, result, i*cols, cols);
+		return result;
+	}
+	
+	/**
+	 * Transposes a contiguous row-major matrix.
+	 * 
+	 * @param m rows x cols matrix
+	 * @param result preallocated cols x rows matrix filled by the method
+	 */
+	public static void transpose(double[] m, int rows, int cols, double[] result) {
+		for (int i=0; i<rows; i++)
+			for (int j=0; j<cols; j++)
+				result[j*rows + i] = m[i*cols + j];
+	}
+	
+	public static String matrixToString(double[] m, int rows, int cols) {
+		StringBuffer sb = new StringBuffer();
+		sb.append(rows).append(" ").append(cols).append(" ");
+		for (int i=0; i<rows*cols; i++)
+			sb.append(String.format("%.2f", m[i])).append(" ");
+		return sb.toString();
+	}
+	
 	public static double[][] randomRowStochastic(int N, int K) {
 		double[][] m = new double[N][K];
 		
@@ -0,0 +1,111 @@
+import java.util.Arrays;
+
+/**
+ * A message of the protocol between the GameServer and the Client (see
+ * GameServer): a type and a list of integers.
+ *
+ * The values of each type are:
+ * GAME: player id, number of players
+ * SCORE: score of each player
+ * ROUND: round, number of birds
+ * MOVES: number of observations n, then n observations of all the birds
+ * SHOOT, GUESS: deadline
+ * HIT: bird, deadline
+ * REVEAL: species of each bird, deadline
+ * TIMEOUT, GAMEOVER: none
+ * ACTION (answer to SHOOT): bird, movement
+ * GUESSES (answer to GUESS): guessed species of each bird
+ *
+ * Messages are reused by the receivers, so a received message is valid until
+ * the next one is received in it.
+ */
+class Message {
+    public static final int GAME = 0;
+    public static final int SCORE = 1;
+    public static final int ROUND = 2;
+    public static final int MOVES = 3;
+    public static final int SHOOT = 4;
+    public static final int GUESS = 5;
+    public static final int HIT = 6;
+    public static final int REVEAL = 7;
+    public static final int TIMEOUT = 8;
+    public static final int GAMEOVER = 9;
+    public static final int ACTION = 10;
+    public static final int GUESSES = 11;
+
+    // keywords of the text protocol (the answers have none)
+    static final String[] cNames = { "GAME", "SCORE", "ROUND", "MOVES", "SHOOT",
+            "GUESS", "HIT", "REVEAL", "TIMEOUT", "GAMEOVER", "ACTION", "GUESSES" };
+
+    public Message()
+    {
+        mValues = new int[16];
+    }
+
+    /**
+     * Clear the message and set its type
+     *
+     * @return this message, to add the values
+     */
+    public Message set(int pType)
+    {
+        mType = pType;
+        mSize = 0;
+        return this;
+    }
+
+    /**
+     * Add a value
+     *
+     * @return this message
+     */
+    public Message add(int pValue)
+    {
+        if (mSize == mValues.length)
+            mValues = Arrays.copyOf(mValues, 2 * mSize);
+        mValues[mSize++] = pValue;
+        return this;
+    }
+
+    /**
+     * Make this message a copy of another one
+     */
+    public void copy(Message pMessage)
+    {
+        set(pMessage.mType);
+        if (mValues.length < pMessage.mSize)
+            mValues = new int[pMessage.mValues.length];
+        System.arraycopy(pMessage.mValues, 0, mValues, 0, pMessage.mSize);
+        mSize = pMessage.mSize;
+    }
+
+    public int getType()
+    {
+        return mType;
+    }
+
+    ///returns the number of values
+    public int size()
+    {
+        return mSize;
+    }
+
+    ///returns the i-th value
+    public int get(int i)
+    {
+        return mValues[i];
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder lString = new StringBuilder(cNames[mType]);
+        for (int i = 0; i < mSize; ++i)
+            lString.append(' ').append(mValues[i]);
+        return lString.toString();
+    }
+
+    private int mType;
+    private int[] mValues;
+    private int mSize;
+}
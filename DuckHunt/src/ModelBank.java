@@ -0,0 +1,239 @@
+import java.util.List;
+
+/**
+ * Bank of HMMs of the same shape (N states, K output symbols) scoring
+ * observation sequences against all the models at once.
+ *
+ * The parameters are stored as structure of arrays, with the model index
+ * innermost: pi[i*S+m], BT[(k*N+i)*S+m] = B[i][k] and the operators
+ * MT[((k*N+i)*N+j)*S+m] = A[j][i] * B[i][k] (see HMM), where S is the capacity
+ * of the bank. The forward algorithm then runs for all the models in the same
+ * loops: the symbol of each time step is looked up once, and the innermost
+ * loop, over the models, has stride 1 and can be vectorized by the JIT.
+ *
+ * At each time step alpha is scaled by the power of two that brings its sum
+ * into [1, 2), instead of by the sum itself: the scaling is exact and the
+ * log-probability needs one logarithm per sequence and model instead of one
+ * per time step (alpha never gets smaller than HMM.evaluate's, so the results
+ * are the same up to rounding, down to the smallest emissions).
+ *
+ * The bank copies the parameters: if a model is learned again, it must be set
+ * again. A bank is not thread-safe, as it reuses its buffers.
+ *
+ * @author fruggeri
+ */
+public class ModelBank {
+	private static final int INITIAL_CAPACITY = 8;
+	private static final double LN_2 = Math.log(2);
+
+	private double pi[], BT[], MT[];
+	private double alpha[], next[], c[];
+	private int exponent[];
+	private int N, K, S, size;
+
+	/**
+	 * Creates an empty bank.
+	 *
+	 * @param N number of states of the models
+	 * @param K number of output symbols of the models
+	 */
+	public ModelBank(int N, int K) {
+		this.N = N;
+		this.K = K;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Adds a model (its parameters are copied).
+	 *
+	 * @param model model with N states and K output symbols
+	 * @return index of the model in the bank
+	 */
+	public int add(HMM model) {
+		if (size == S)
+			allocate(2 * S);
+		set(size++, model);
+		return size - 1;
+	}
+
+	/**
+	 * Replaces a model (its parameters are copied), e.g. after it has been
+	 * learned again.
+	 *
+	 * @param m index of the model in the bank
+	 * @param model model with N states and K output symbols
+	 */
+	public void set(int m, HMM model) {
+		if (m < 0 || m >= size)
+			throw new IndexOutOfBoundsException("Model " + m + " of " + size);
+		if (model.getNumStates() != N || model.getNumSymbols() != K)
+			throw new IllegalArgumentException("Model of shape " + model.getNumStates() + "x"
+					+ model.getNumSymbols() + " in a bank of shape " + N + "x" + K);
+
+		double[] mPi = model.getPi(), mA = model.getA(), mB = model.getB();
+		for (int i=0; i<N; i++)
+			pi[i*S + m] = mPi[i];
+		for (int k=0; k<K; k++)
+			for (int i=0; i<N; i++) {
+				double b = mB[i*K + k];
+				BT[(k*N + i)*S + m] = b;
+				for (int j=0; j<N; j++)
+					MT[((k*N + i)*N + j)*S + m] = mA[j*N + i] * b;
+			}
+	}
+
+	/**
+	 * Removes all the models.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * @return number of models
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Computes the log-probability of an observation sequence for each model.
+	 *
+	 * @param O observations
+	 * @param T length of the observation sequence
+	 * @param result preallocated array filled by the method: result[m] is the
+	 *               log-probability for model m (0 if T is 0)
+	 * @param off offset of the first result in result
+	 */
+	public void evaluate(int[] O, int T, double[] result, int off) {
+		int M = size;
+		for (int m=0; m<M; m++)
+			exponent[m] = 0;
+
+		for (int t=0; t<T; t++) {
+			if (t == 0)
+				forwardInit(O[0]);
+			else
+				forwardStep(O[t]);
+
+			// scale alpha_t by 2^-e, where 2^e <= sum(alpha_t) < 2^(e+1) (exact, so
+			// the logarithm of the scaling factors is just the sum of their exponents)
+			sum();
+			for (int m=0; m<M; m++)
+				if (c[m] != 0) {
+					int e = Math.getExponent(c[m]);
+					c[m] = Double.longBitsToDouble((long) (Double.MAX_EXPONENT - e) << 52);
+					exponent[m] += e;
+				}
+			for (int i=0; i<N; i++)
+				for (int m=0; m<M; m++)
+					alpha[i*S + m] *= c[m];
+		}
+
+		// P(O) = sum(alpha_T-1) * 2^exponent
+		sum();
+		for (int m=0; m<M; m++) {
+			double tmp = T == 0 ? 0 : Math.log(c[m]) + exponent[m] * LN_2;
+			result[off + m] = Double.isFinite(tmp) ? tmp : Double.NEGATIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * Computes the log-probability of each observation sequence for each model.
+	 *
+	 * @param sequences observation sequences
+	 * @param lengths lengths of the sequences, null if they are the whole arrays
+	 * @param result preallocated array of length sequences.length * size()
+	 *               filled by the method: result[s*size()+m] is the
+	 *               log-probability of sequence s for model m
+	 */
+	public void evaluate(int[][] sequences, int[] lengths, double[] result) {
+		for (int s=0; s<sequences.length; s++)
+			evaluate(sequences[s], lengths == null ? sequences[s].length : lengths[s], result, s * size);
+	}
+
+	/**
+	 * Computes the log-probability of each observation sequence for each model.
+	 *
+	 * @param sequences observation sequences
+	 * @return [sequence][model] matrix of log-probabilities
+	 */
+	public double[][] evaluate(List<int[]> sequences) {
+		double[][] result = new double[sequences.size()][size];
+		for (int s=0; s<result.length; s++)
+			evaluate(sequences.get(s), sequences.get(s).length, result[s], 0);
+		return result;
+	}
+
+	/**
+	 * Computes the sum of alpha_t of each model into c.
+	 */
+	private void sum() {
+		int M = size;
+		for (int m=0; m<M; m++)
+			c[m] = alpha[m];
+		for (int i=1; i<N; i++)
+			for (int m=0; m<M; m++)
+				c[m] += alpha[i*S + m];
+	}
+
+	/**
+	 * Computes alpha_0 (not scaled) for all the models.
+	 *
+	 * @param o first observation
+	 */
+	private void forwardInit(int o) {
+		int b = o * N * S;
+		for (int i=0; i<N*S; i++)
+			alpha[i] = pi[i] * BT[b + i];
+	}
+
+	/**
+	 * Computes alpha_t (not scaled) from alpha_t-1 for all the models.
+	 *
+	 * @param o observation at time t
+	 */
+	private void forwardStep(int o) {
+		double[] prev = alpha, cur = next, mt = MT;
+		int M = size;
+		for (int i=0; i<N; i++) {
+			int to = i*S, op = (o*N + i)*N*S;
+			for (int m=0; m<M; m++)
+				cur[to + m] = prev[m] * mt[op + m];
+			for (int j=1; j<N; j++) {
+				int from = j*S, ij = op + j*S;
+				for (int m=0; m<M; m++)
+					cur[to + m] += prev[from + m] * mt[ij + m];
+			}
+		}
+
+		// swap buffers
+		alpha = cur;
+		next = prev;
+	}
+
+	/**
+	 * Changes the capacity of the bank, keeping its models.
+	 *
+	 * @param capacity new capacity
+	 */
+	private void allocate(int capacity) {
+		double[] oldPi = pi, oldBT = BT, oldMT = MT;
+		int oldS = S;
+		S = capacity;
+		pi = new double[N*S];
+		BT = new double[K*N*S];
+		MT = new double[K*N*N*S];
+		alpha = new double[N*S];
+		next = new double[N*S];
+		c = new double[S];
+		exponent = new int[S];
+
+		for (int r=0; oldS>0 && r<N; r++)
+			System.arraycopy(oldPi, r*oldS, pi, r*S, size);
+		for (int r=0; oldS>0 && r<K*N; r++)
+			System.arraycopy(oldBT, r*oldS, BT, r*S, size);
+		for (int r=0; oldS>0 && r<K*N*N; r++)
+			System.arraycopy(oldMT, r*oldS, MT, r*S, size);
+	}
+}
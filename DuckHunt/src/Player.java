@@ -1,10 +1,22 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
- * Possible improvement: 1 HMM for species (instead of for each bird)
- * This requires learning with multiple observation sequences, see tutorial by Rabiner.
+ * 1 HMM for species, learned from the observation sequences of all the revealed
+ * birds of that species (learning with multiple observation sequences, see
+ * tutorial by Rabiner). When new birds are revealed, the model is refined
+ * starting from the current parameters (smoothed, so that moves never seen
+ * before can be learned).
+ * 
+ * Optionally, the species models are loaded at construction from a file of
+ * models trained offline (see SpeciesTrainer) and written back, refined, at the
+ * end of the game. Only sound models (see isSound) are loaded and written back:
+ * the species of the others are learned from scratch in the next game.
  * 
  * @author fruggeri
  */
@@ -12,24 +24,67 @@ import java.util.List;
 class Player {
 
 	private static final Action cDontShoot = new Action(-1, -1);
-	private static final int COUNT_PATTERN = 2;
+	static final int COUNT_PATTERN = 2;
 	private static final double MIN_CONFIDENCE_SHOT = 0.75;
 	private static final int MAX_ITERS_SHOT = 1000;
 	private static final int MAX_ITERS_GUESS = 1000;
+	private static final int MAX_ITERS_UPDATE = 100;
+	private static final double MIN_PROBABILITY = 1e-6;	// of the models refined, so new sequences are possible
+	private static final ConvergencePolicy CONVERGENCE = new ToleranceConvergence(0, 1e-7, 0, 5);
+	private static final int MIN_SEQUENCES_PARALLEL = 64;	// learn in parallel from this number of sequences
+	private static final long TIME_MARGIN_MS = 50;			// time kept for the rest of the callback
 	private static final int TURNS_PER_ROUND = 100;
 	private static final int TURN_TO_SHOOT_MULTI_PLAYER = 50;
 	
 	private int round, timeStep;
-	private List<List<HMM>> speciesModels;
+	private HMM[] speciesModels;			// null if no bird of the species has been revealed yet
+	private TrainingReport[] speciesReports;	// last training of the species models
+	private ModelBank speciesBank;			// copy of the species models, for scoring all the birds at once
+	private int[] bankSpecies;				// species of each model of the bank
+	private String modelsFile;				// file of the species models, null if none
+	private List<List<int[]>> speciesSequences;
+	private ForwardState[][] filters;		// filters of the species models for each bird [bird][species]
+	private HMMWorkspace workspace;			// buffers reused by all the HMM computations
+	private double[] nextMoveDistribution;
+	private PrintStream log;				// where the player reports what it does
 	private int hits, totShots, rightGuesses, totGuesses, lastGuess[];	// statistics
 	
     public Player() {
+    	this(null);
+    }
+    
+    /**
+     * Creates a player starting from the species models in the given file (if it
+     * exists), and writing them back at the end of the game.
+     * 
+     * @param modelsFile file of species models, null for none
+     */
+    public Player(String modelsFile) {
     	round = -1;
-    	speciesModels = new ArrayList<>(Constants.COUNT_SPECIES);
+    	log = System.err;
+    	this.modelsFile = modelsFile;
+    	speciesModels = new HMM[Constants.COUNT_SPECIES];
+    	speciesReports = new TrainingReport[Constants.COUNT_SPECIES];
+    	speciesBank = new ModelBank(COUNT_PATTERN, Constants.COUNT_MOVE);
+    	bankSpecies = new int[Constants.COUNT_SPECIES];
+    	if (modelsFile != null && new File(modelsFile).exists())
+    		loadModels(modelsFile);
+    	speciesSequences = new ArrayList<>(Constants.COUNT_SPECIES);
     	for (int i=0; i<Constants.COUNT_SPECIES; i++)
-    		speciesModels.add(new LinkedList<>());
+    		speciesSequences.add(new ArrayList<>());
+    	workspace = new HMMWorkspace();
+    	nextMoveDistribution = new double[Constants.COUNT_MOVE];
     	hits = totShots = rightGuesses = totGuesses = 0;
     }
+    
+    /**
+     * Sets where the player reports what it does (standard error by default).
+     * 
+     * @param log stream of the reports
+     */
+    public void setLog(PrintStream log) {
+    	this.log = log;
+    }
 
     /**
      * Shoot!
@@ -55,6 +110,7 @@ class Player {
 		if (round != pState.getRound()) {
 			round = pState.getRound();
 			timeStep = 0;
+			filters = createFilters(nBirds);
 		}
 
 		// take your time to observe, don't rush
@@ -70,22 +126,31 @@ class Player {
         	if (bird.isDead())
         		continue;
         	
+        	// feed the new moves to the filters of the species models (only the new
+        	// moves are processed, the filters keep the state of the previous turns)
+        	byte[] observationSequence = bird.getObservations();
+        	int T = bird.getLiveLength();
+        	for (ForwardState filter : filters[b])
+        		if (filter != null)
+        			filter.append(observationSequence, filter.length(), T);
+        	
         	// don't shoot if you are not sure it's not a black stork
-        	int[] observationSequence = getObservationSequence(bird);
-        	int species = guessSpecies(observationSequence);
+        	int species = guessSpecies(filters[b]);
         	if (species == Constants.SPECIES_BLACK_STORK || species == Constants.SPECIES_UNKNOWN)
         		continue;
         	
-        	// get useful models (i.e. birds of the same species + this bird)
-        	List<HMM> models = new LinkedList<>(speciesModels.get(species));
-        	HMM birdModel = new HMM(COUNT_PATTERN, Constants.COUNT_MOVE);	// this bird
-        	birdModel.learn(observationSequence, MAX_ITERS_SHOT);
-        	models.add(birdModel);
+        	// model of this bird, learned in its share of the remaining time
+        	HMM birdModel = new HMM(COUNT_PATTERN, Constants.COUNT_MOVE);
+        	birdModel.setConvergencePolicy(CONVERGENCE);
+        	birdModel.learn(observationSequence, T, MAX_ITERS_SHOT, share(pDue, nBirds - b), workspace);
         	
-        	// search most likely next move
-        	for (HMM model : models) {
+        	// search most likely next move (model of the species + model of this bird)
+        	for (int i=0; i<2; i++) {
         		// get probability distribution of next move
-        		double[] nextMoveDistribution = model.nextObservationDistribution(observationSequence);
+        		if (i == 0)
+        			filters[b][species].predictNext(nextMoveDistribution);
+        		else
+        			birdModel.nextObservationDistribution(observationSequence, T, nextMoveDistribution, workspace);
         		
         		// update action
         		for (int m=0; m<nextMoveDistribution.length; m++) {
@@ -100,7 +165,7 @@ class Player {
         // statistics
         if (action != cDontShoot) {
         	totShots++;
-        	System.err.println("Shot with confidence: " + confidence);
+        	log.println("Shot with confidence: " + confidence);
         }
         return action;
     }
@@ -121,18 +186,25 @@ class Player {
     	int nBirds = pState.getNumBirds();
         int[] lGuess = new int[nBirds];
         
+        // evaluate the observation sequence of each bird (while alive) for all
+        // the species models at once
+        int[] lengths = new int[nBirds];
+        double[] confidences = new double[nBirds * speciesBank.size()];
         for (int b=0; b<nBirds; b++) {
-        	// first round (no information), guess anyway to get information
-        	if (round == 0) {
-        		lGuess[b] = Constants.SPECIES_PIGEON;
-        	} else {
-        		// species recognition
-        		lGuess[b] = guessSpecies(getObservationSequence(pState.getBird(b)));
-        		
-        		// none of the models fits, guess randomly to get information
-        		if (lGuess[b] == Constants.SPECIES_UNKNOWN)
-        			lGuess[b] = (int) (Math.random() * Constants.COUNT_SPECIES);
-        	}
+        	Bird bird = pState.getBird(b);
+        	lengths[b] = bird.getLiveLength();
+        	speciesBank.evaluate(workspace.symbols(bird.getObservations(), lengths[b]), lengths[b], confidences,
+        			b * speciesBank.size());
+        }
+        
+        for (int b=0; b<nBirds; b++) {
+        	// species recognition
+        	lGuess[b] = lengths[b] == 0 ? Constants.SPECIES_UNKNOWN : guessSpecies(confidences, b * speciesBank.size());
+        	
+        	// no model yet (first round, no information) or none of the models
+        	// fits, guess anyway to get information
+        	if (lGuess[b] == Constants.SPECIES_UNKNOWN)
+        		lGuess[b] = round == 0 ? Constants.SPECIES_PIGEON : (int) (Math.random() * Constants.COUNT_SPECIES);
         	
         	// statistics
         	if (lGuess[b] != Constants.SPECIES_UNKNOWN)
@@ -152,7 +224,7 @@ class Player {
      * @param pDue time before which we must have returned
      */
     public void hit(GameState pState, int pBird, Deadline pDue) {
-        System.err.println("HIT BIRD!!!");
+        log.println("HIT BIRD!!!");
         hits++;		// statistics
     }
 
@@ -165,66 +237,210 @@ class Player {
      * @param pDue time before which we must have returned
      */
     public void reveal(GameState pState, int[] pSpecies, Deadline pDue) {
+    	boolean[] updated = new boolean[Constants.COUNT_SPECIES];
     	for (int b=0; b<pSpecies.length; b++) {
     		if (pSpecies[b] == Constants.SPECIES_UNKNOWN)
     			continue;
     		
-    		// add model of bird to collection of models of its species
-    		HMM hmm = new HMM(COUNT_PATTERN, Constants.COUNT_MOVE);
-    		hmm.learn(getObservationSequence(pState.getBird(b)), MAX_ITERS_GUESS);
-    		speciesModels.get(pSpecies[b]).add(hmm);
+    		// add observation sequence of bird (while alive) to collection of
+    		// sequences of its species
+    		Bird bird = pState.getBird(b);
+    		if (bird.getLiveLength() > 0) {
+    			speciesSequences.get(pSpecies[b]).add(Arrays.copyOf(workspace.symbols(bird.getObservations(), bird.getLiveLength()),
+    					bird.getLiveLength()));
+    			updated[pSpecies[b]] = true;
+    		}
     		
     		// statistics
     		if (pSpecies[b] == lastGuess[b])
     			rightGuesses++;
     	}
     	
+    	int nUpdated = 0;
+    	for (boolean u : updated)
+    		if (u)
+    			nUpdated++;
+    	
+    	// learn new species models, refine the existing ones (each in its share of
+    	// the remaining time)
+    	for (int s=0; s<Constants.COUNT_SPECIES; s++) {
+    		if (!updated[s])
+    			continue;
+    		Deadline due = share(pDue, nUpdated--);
+    		int maxIters = MAX_ITERS_UPDATE;
+    		if (speciesModels[s] == null) {
+    			speciesModels[s] = new HMM(COUNT_PATTERN, Constants.COUNT_MOVE);
+    			speciesModels[s].setConvergencePolicy(CONVERGENCE);
+    			maxIters = MAX_ITERS_GUESS;
+    		} else {
+    			// a probability learned as 0 would make the new sequences with that
+    			// move (or transition) impossible, and Baum-Welch couldn't learn them
+    			speciesModels[s].smooth(MIN_PROBABILITY);
+    		}
+    		List<int[]> sequences = speciesSequences.get(s);
+    		if (sequences.size() >= MIN_SEQUENCES_PARALLEL)
+    			speciesReports[s] = speciesModels[s].learn(sequences, maxIters, due, ForkJoinPool.commonPool());
+    		else
+    			speciesReports[s] = speciesModels[s].learn(sequences, maxIters, due, workspace);
+    	}
+    	updateBank();
+    	
     	// statistics
-    	System.err.println();
-    	System.err.println("HITS: " + hits);
-    	System.err.println("TOT SHOTS: " + totShots);
-    	System.err.println("RIGHT GUESSES: " + rightGuesses);
-    	System.err.println("TOT GUESSES: " + totGuesses);
-    	System.err.println();
+    	log.println();
+    	log.println("HITS: " + hits);
+    	log.println("TOT SHOTS: " + totShots);
+    	log.println("RIGHT GUESSES: " + rightGuesses);
+    	log.println("TOT GUESSES: " + totGuesses);
+    	log.println();
+    }
+    
+    /**
+     * The game is over (no deadline): writes the species models back to the
+     * file of models, if any.
+     * 
+     * @param pState the GameState object with observations etc
+     */
+    public void gameOver(GameState pState) {
+    	if (modelsFile == null)
+    		return;
+    	HMM[] models = new HMM[Constants.COUNT_SPECIES];
+    	for (int s=0; s<Constants.COUNT_SPECIES; s++) {
+    		if (isSound(speciesModels[s], speciesReports[s]))
+    			models[s] = speciesModels[s];
+    		else if (speciesModels[s] != null)
+    			log.println("Not writing back the model of species " + s + ": " + speciesReports[s]);
+    	}
+    	try {
+    		HMMFile.write(modelsFile, models, speciesReports);
+    	} catch (IOException e) {
+    		log.println("Cannot write the species models to " + modelsFile + ": " + e.getMessage());
+    	}
     }
     
 	/**
-	 * Computes the most likely species the bird belongs to, solving the evaluation
-	 * problem for different species and choosing the model that best fits the
-	 * observations (species recognition).
+	 * Computes the most likely species the bird belongs to, choosing the model
+	 * that best fits the observations (species recognition), from the evaluation
+	 * of the observation sequence for each model of the bank.
 	 * 
-	 * @param observationSequence observation sequence
+	 * @param confidences log-probabilities of the observation sequence
+	 * @param off offset of the log-probability for the first model of the bank
+	 * @return most likely species, SPECIES_UNKNOWN if there is no model
+	 */
+    private int guessSpecies(double[] confidences, int off) {
+    	int guess = Constants.SPECIES_UNKNOWN;
+    	double maxConfidence = Double.NEGATIVE_INFINITY;
+    	
+    	for (int m=0; m<speciesBank.size(); m++) {
+			// update guess
+			if (confidences[off + m] > maxConfidence) {
+				guess = bankSpecies[m];
+				maxConfidence = confidences[off + m];
+			}
+		}
+    	return guess;
+    }
+    
+	/**
+	 * Computes the most likely species the bird belongs to, like
+	 * guessSpecies(double[], int), but using the filters of the bird.
+	 * 
+	 * @param birdFilters filters of the species models for the bird
 	 * @return most likely species
 	 */
-    private int guessSpecies(int[] observationSequence) {
+    private int guessSpecies(ForwardState[] birdFilters) {
     	int guess = Constants.SPECIES_UNKNOWN;
     	double maxConfidence = Double.NEGATIVE_INFINITY;
     	
     	for (int s=0; s<Constants.COUNT_SPECIES; s++) {
-			for (HMM hmm : speciesModels.get(s)) {
-				// evaluate observation sequence
-				double confidence = hmm.evaluate(observationSequence);
-				
-				// update guess
-				if (confidence > maxConfidence) {
-					guess = s;
-					maxConfidence = confidence;
-				}
+    		if (birdFilters[s] == null)
+    			continue;
+    		
+			double confidence = birdFilters[s].logLikelihood();
+			
+			// update guess
+			if (confidence > maxConfidence) {
+				guess = s;
+				maxConfidence = confidence;
 			}
 		}
     	return guess;
     }
     
     /**
-     * Gets the observation sequence (movements) of the bird.
+     * Loads the species models from a file of models (the ones with a different
+     * shape, or not sound, are ignored).
+     * 
+     * @param fileName file of species models
+     */
+    private void loadModels(String fileName) {
+    	try {
+    		HMMFile file = HMMFile.map(fileName);
+    		for (int s=0; s<Constants.COUNT_SPECIES && s<file.size(); s++) {
+    			HMM model = file.getModel(s);
+    			if (model == null || model.getNumStates() != COUNT_PATTERN || model.getNumSymbols() != Constants.COUNT_MOVE)
+    				continue;
+    			TrainingReport report = file.getReport(s);
+    			if (!isSound(model, report)) {
+    				log.println("Ignoring the model of species " + s + " in " + fileName + ": " + report);
+    				continue;
+    			}
+    			model.setConvergencePolicy(CONVERGENCE);
+    			speciesModels[s] = model;
+    			speciesReports[s] = report;
+    		}
+    	} catch (IOException e) {
+    		log.println("Cannot read the species models from " + fileName + ": " + e.getMessage());
+    	}
+    	updateBank();
+    }
+    
+    /**
+     * Checks a species model before it is loaded or written back: a failed
+     * training must not be carried over to the next games.
+     * 
+     * @param model species model, null if none
+     * @param report last training of the model
+     * @return true if the model has a finite log-likelihood and its parameters
+     *         are probability distributions
+     */
+    private static boolean isSound(HMM model, TrainingReport report) {
+    	return model != null && report != null && Double.isFinite(report.getLogLikelihood()) && model.isStochastic();
+    }
+    
+    /**
+     * Copies the species models into the bank (after they have been learned).
+     */
+    private void updateBank() {
+    	speciesBank.clear();
+    	for (int s=0; s<Constants.COUNT_SPECIES; s++)
+    		if (speciesModels[s] != null)
+    			bankSpecies[speciesBank.add(speciesModels[s])] = s;
+    }
+    
+    /**
+     * Creates empty filters of the species models for each bird.
+     * 
+     * @param nBirds number of birds
+     * @return filters [bird][species], null for the species without model
+     */
+    private ForwardState[][] createFilters(int nBirds) {
+    	ForwardState[][] result = new ForwardState[nBirds][Constants.COUNT_SPECIES];
+    	for (int b=0; b<nBirds; b++)
+    		for (int s=0; s<Constants.COUNT_SPECIES; s++)
+    			if (speciesModels[s] != null)
+    				result[b][s] = speciesModels[s].forwardState();
+    	return result;
+    }
+    
+    /**
+     * Splits the time remaining before the deadline (minus a safety margin) among
+     * the tasks still to do.
      * 
-     * @param bird bird
-     * @return observation sequence
+     * @param pDue deadline of the callback
+     * @param tasks number of tasks still to do (at least 1)
+     * @return deadline of the next task
      */
-    private int[] getObservationSequence(Bird bird) {
-    	int[] observationSequence = new int[bird.getSeqLength()];
-    	for (int t=0; t<observationSequence.length && bird.wasAlive(t); t++)
-    		observationSequence[t] = bird.getObservation(t);
-    	return observationSequence;
+    private static Deadline share(Deadline pDue, int tasks) {
+    	return new Deadline(Math.max(0, pDue.remainingMs() - TIME_MARGIN_MS) / tasks);
     }
 }
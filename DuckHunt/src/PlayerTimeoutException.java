@@ -0,0 +1,11 @@
+/**
+ * Thrown by the Client when the player misses a deadline, either measured by
+ * the client or reported by the server with a TIMEOUT message
+ */
+class PlayerTimeoutException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public PlayerTimeoutException(String pMessage) {
+        super(pMessage);
+    }
+}
@@ -0,0 +1,220 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the messages of the text protocol line by line, directly from the
+ * bytes of the stream: the tokens of a line are parsed in place, without
+ * creating a String per line or per token.
+ *
+ * The tokens are separated by the same characters as for StringTokenizer and
+ * the integers are accepted exactly as by Integer.parseInt, so a line is
+ * rejected in the same cases.
+ */
+class ProtocolReader {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Create a reader of a stream (which should not be buffered, the reader does
+     * its own buffering)
+     */
+    public ProtocolReader(InputStream pInputStream) {
+        mInputStream = pInputStream;
+        mBuffer = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Read the next line, whose tokens are then returned by the other methods
+     *
+     * @return false if the stream is closed
+     */
+    public boolean readLine() throws IOException {
+        // skip the separator of the previous line ("\r\n" is a single one)
+        if (mSeparator) {
+            if (mBuffer[mLineEnd] == '\r' && (mLineEnd + 1 < mLimit || fill(mLineEnd + 1))
+                    && mBuffer[mLineEnd + 1] == '\n')
+                mLineEnd++;
+            mLineEnd++;
+        }
+
+        mLineStart = mPos = mLineEnd;
+        if (mLineStart == mLimit && !fill(mLineStart))
+            return false;
+
+        // find the end of the line
+        int i = mLineStart;
+        while (true) {
+            if (i == mLimit) {
+                int lOffset = i - mLineStart;
+                if (!fill(mLineStart)) {
+                    i = mLimit;
+                    break;
+                }
+                i = mLineStart + lOffset;
+            }
+            if (mBuffer[i] == '\n' || mBuffer[i] == '\r')
+                break;
+            i++;
+        }
+        mLineEnd = i;
+        mSeparator = i < mLimit;
+        return true;
+    }
+
+    /**
+     * @return true if the current line has more tokens
+     */
+    public boolean hasMoreTokens() {
+        skipDelimiters();
+        return mPos < mLineEnd;
+    }
+
+    /**
+     * Read a keyword
+     *
+     * @param pKeywords the expected keywords (ASCII)
+     * @return the index of the keyword, -1 if the next token is none of them
+     * @throws NoSuchElementException if the line has no more tokens
+     */
+    public int nextKeyword(byte[][] pKeywords) {
+        int lStart = nextToken();
+        int lLength = mPos - lStart;
+        for (int k = 0; k < pKeywords.length; ++k) {
+            if (pKeywords[k].length != lLength)
+                continue;
+            int i = 0;
+            while (i < lLength && mBuffer[lStart + i] == pKeywords[k][i])
+                ++i;
+            if (i == lLength)
+                return k;
+        }
+        return -1;
+    }
+
+    /**
+     * Read an integer
+     *
+     * @throws NoSuchElementException if the line has no more tokens
+     * @throws NumberFormatException if the token is not an integer
+     */
+    public int nextInt() {
+        int lStart = nextToken();
+        int i = lStart;
+        boolean lNegative = false;
+        if (mBuffer[i] == '-' || mBuffer[i] == '+') {
+            lNegative = mBuffer[i] == '-';
+            ++i;
+        }
+        if (i == mPos)
+            throw numberFormat(lStart);
+
+        long lValue = 0;
+        for (; i < mPos; ++i) {
+            int lDigit = mBuffer[i] - '0';
+            if (lDigit < 0 || lDigit > 9)
+                throw numberFormat(lStart);
+            lValue = 10 * lValue + lDigit;
+            if (lValue > -(long) Integer.MIN_VALUE)
+                throw numberFormat(lStart);
+        }
+        if (lNegative)
+            lValue = -lValue;
+        if (lValue > Integer.MAX_VALUE)
+            throw numberFormat(lStart);
+        return (int) lValue;
+    }
+
+    /**
+     * Read a move, like nextInt() but with a shortcut for the usual tokens (a
+     * single digit or -1 for a dead bird)
+     */
+    public int nextMove() {
+        skipDelimiters();
+        int lLength = tokenLength();
+        if (lLength == 1 && mBuffer[mPos] >= '0' && mBuffer[mPos] <= '9')
+            return mBuffer[mPos++] - '0';
+        if (lLength == 2 && mBuffer[mPos] == '-' && mBuffer[mPos + 1] == '1') {
+            mPos += 2;
+            return Constants.MOVE_DEAD;
+        }
+        return nextInt();
+    }
+
+    /**
+     * @return the current line (for error messages)
+     */
+    public String getLine() {
+        return new String(mBuffer, mLineStart, mLineEnd - mLineStart, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Skip to the next token and move past it
+     *
+     * @return the start of the token
+     */
+    private int nextToken() {
+        skipDelimiters();
+        if (mPos == mLineEnd)
+            throw new NoSuchElementException();
+        int lStart = mPos;
+        mPos += tokenLength();
+        return lStart;
+    }
+
+    private int tokenLength() {
+        int i = mPos;
+        while (i < mLineEnd && !isDelimiter(mBuffer[i]))
+            ++i;
+        return i - mPos;
+    }
+
+    private void skipDelimiters() {
+        while (mPos < mLineEnd && isDelimiter(mBuffer[mPos]))
+            ++mPos;
+    }
+
+    // same delimiters as StringTokenizer
+    private static boolean isDelimiter(byte c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private NumberFormatException numberFormat(int pStart) {
+        return new NumberFormatException("For input string: \""
+                + new String(mBuffer, pStart, mPos - pStart, StandardCharsets.US_ASCII) + "\"");
+    }
+
+    /**
+     * Read more bytes, keeping the bytes from pKeep on (moved to the start of
+     * the buffer, which grows if they fill it)
+     *
+     * @return false if the stream is closed
+     */
+    private boolean fill(int pKeep) throws IOException {
+        int lKept = mLimit - pKeep;
+        if (pKeep > 0) {
+            System.arraycopy(mBuffer, pKeep, mBuffer, 0, lKept);
+        } else if (lKept == mBuffer.length) {
+            byte[] lBuffer = new byte[2 * mBuffer.length];
+            System.arraycopy(mBuffer, 0, lBuffer, 0, lKept);
+            mBuffer = lBuffer;
+        }
+        mLineStart -= pKeep;
+        mLineEnd -= pKeep;
+        mPos -= pKeep;
+        mLimit = lKept;
+
+        int lRead = mInputStream.read(mBuffer, mLimit, mBuffer.length - mLimit);
+        if (lRead <= 0)
+            return false;
+        mLimit += lRead;
+        return true;
+    }
+
+    private InputStream mInputStream;
+    private byte[] mBuffer;
+    private int mLimit;                 // end of the bytes read
+    private int mLineStart, mLineEnd;   // current line (without the separator)
+    private int mPos;                   // position in the current line
+    private boolean mSeparator;         // the current line ends with a separator
+}
@@ -0,0 +1,100 @@
+import java.net.ProtocolException;
+
+/**
+ * What an end of a connection knows about the game from the messages that went
+ * through it (number of players and birds, answer expected), used by the
+ * transports to decode and check the messages.
+ */
+class ProtocolState {
+    public ProtocolState()
+    {
+        mAnswer = -1;
+    }
+
+    /**
+     * Update the state with a message sent or received
+     */
+    void update(Message pMessage)
+    {
+        switch (pMessage.getType()) {
+        case Message.GAME:
+            mNumPlayers = pMessage.get(1);
+            break;
+        case Message.ROUND:
+            mNumBirds = pMessage.get(1);
+            break;
+        case Message.SHOOT:
+            mAnswer = Message.ACTION;
+            break;
+        case Message.GUESS:
+            mAnswer = Message.GUESSES;
+            break;
+        case Message.ACTION:
+        case Message.GUESSES:
+            mAnswer = -1;
+            break;
+        }
+    }
+
+    ///returns the type of the answer expected next, -1 if none
+    int getAnswer()
+    {
+        return mAnswer;
+    }
+
+    int getNumPlayers()
+    {
+        return mNumPlayers;
+    }
+
+    int getNumBirds()
+    {
+        return mNumBirds;
+    }
+
+    /**
+     * Returns the number of values of a message of the given type
+     *
+     * @param pNumMoves number of observations (only for MOVES)
+     */
+    int size(int pType, int pNumMoves)
+    {
+        switch (pType) {
+        case Message.GAME:
+        case Message.ROUND:
+        case Message.HIT:
+        case Message.ACTION:
+            return 2;
+        case Message.SCORE:
+            return mNumPlayers;
+        case Message.MOVES:
+            return 1 + pNumMoves * mNumBirds;
+        case Message.SHOOT:
+        case Message.GUESS:
+            return 1;
+        case Message.REVEAL:
+            return mNumBirds + 1;
+        case Message.GUESSES:
+            return mNumBirds;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Check that a received message has the right number of values
+     *
+     * @throws ProtocolException if it has not
+     */
+    void check(Message pMessage) throws ProtocolException
+    {
+        int lNumMoves = pMessage.getType() == Message.MOVES && pMessage.size() > 0 ? pMessage.get(0) : 0;
+        if (lNumMoves < 0 || pMessage.size() != size(pMessage.getType(), lNumMoves))
+            throw new ProtocolException("Invalid number of values for "
+                    + Message.cNames[pMessage.getType()] + ": " + pMessage.size());
+    }
+
+    private int mNumPlayers;
+    private int mNumBirds;
+    private int mAnswer;
+}
@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Transport of the messages between two threads of the same JVM, through a
+ * queue in each direction: nothing is encoded, the messages are copied.
+ * Create the two ends of a connection with connect().
+ */
+class QueueTransport implements Transport {
+    // put in the queue when an end is closed
+    private static final Message cClosed = new Message();
+
+    private QueueTransport(BlockingQueue<Message> pInputQueue, BlockingQueue<Message> pOutputQueue)
+    {
+        mInputQueue = pInputQueue;
+        mOutputQueue = pOutputQueue;
+    }
+
+    /**
+     * Create the two ends of a connection
+     *
+     * @return the end of the server and the end of the client
+     */
+    public static QueueTransport[] connect()
+    {
+        BlockingQueue<Message> lToClient = new LinkedBlockingQueue<Message>();
+        BlockingQueue<Message> lToServer = new LinkedBlockingQueue<Message>();
+        return new QueueTransport[] { new QueueTransport(lToServer, lToClient),
+                new QueueTransport(lToClient, lToServer) };
+    }
+
+    @Override
+    public void send(Message pMessage) throws IOException
+    {
+        if (mClosed)
+            throw new IOException("Transport closed");
+        Message lMessage = new Message();
+        lMessage.copy(pMessage);
+        mOutputQueue.add(lMessage);
+    }
+
+    @Override
+    public boolean receive(Message pMessage) throws IOException
+    {
+        Message lMessage;
+        try {
+            lMessage = mInputQueue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        if (lMessage == cClosed) {
+            // keep the other end closed for the next calls
+            mInputQueue.add(cClosed);
+            return false;
+        }
+        pMessage.copy(lMessage);
+        return true;
+    }
+
+    @Override
+    public void close()
+    {
+        if (!mClosed)
+            mOutputQueue.add(cClosed);
+        mClosed = true;
+    }
+
+    private BlockingQueue<Message> mInputQueue;
+    private BlockingQueue<Message> mOutputQueue;
+    private boolean mClosed;
+}
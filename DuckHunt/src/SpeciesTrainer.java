@@ -0,0 +1,78 @@
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Offline training of the species models of the Player: learns one model per
+ * species from all the birds of the given environment files and writes them
+ * to a file of models (see HMMFile), which the Player loads at startup.
+ *
+ * Usage (from the DuckHunt directory):
+ * java SpeciesTrainer species.hmm SouthEmissions.in NorthEmissions.in ...
+ * then: java Main models species.hmm
+ *
+ * @author fruggeri
+ */
+public class SpeciesTrainer {
+	private static final int MAX_ITERS = 1000;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: java SpeciesTrainer <models file> <environment file> ...");
+			System.exit(-1);
+		}
+
+		// collect the sequences of each species
+		List<List<int[]>> sequences = new ArrayList<>();
+		for (int s=0; s<Constants.COUNT_SPECIES; s++)
+			sequences.add(new ArrayList<int[]>());
+		for (int f=1; f<args.length; f++)
+			try (FileReader reader = new FileReader(args[f])) {
+				load(reader, sequences);
+			}
+
+		// learn the models
+		HMM[] models = new HMM[Constants.COUNT_SPECIES];
+		TrainingReport[] reports = new TrainingReport[Constants.COUNT_SPECIES];
+		for (int s=0; s<Constants.COUNT_SPECIES; s++) {
+			if (sequences.get(s).isEmpty())
+				continue;
+			models[s] = new HMM(Player.COUNT_PATTERN, Constants.COUNT_MOVE);
+			reports[s] = models[s].learn(sequences.get(s), MAX_ITERS, ForkJoinPool.commonPool());
+			System.err.println("species " + s + ": " + sequences.get(s).size() + " sequences, " + reports[s]);
+		}
+
+		HMMFile.write(args[0], models, reports);
+	}
+
+	/**
+	 * Reads the bird sequences of an environment file (in the format of
+	 * GameServer.load), up to the death of the birds.
+	 *
+	 * @param pStream environment file
+	 * @param sequences list of sequences of each species, updated by the method
+	 */
+	private static void load(Readable pStream, List<List<int[]>> sequences) {
+		Scanner lScanner = new Scanner(pStream);
+		int lNumRounds = lScanner.nextInt();
+		for (int r=0; r<lNumRounds; r++) {
+			int lNumBirds = lScanner.nextInt();
+			for (int b=0; b<lNumBirds; b++) {
+				int lSpecies = lScanner.nextInt();
+				int[] lActions = new int[100];
+				int lLength = 0;
+				for (int i=0; i<lActions.length; i++) {
+					lActions[i] = lScanner.nextInt();
+					if (lActions[i] != Constants.MOVE_DEAD && lLength == i)
+						lLength++;
+				}
+				if (lSpecies >= 0 && lSpecies < Constants.COUNT_SPECIES && lLength > 0)
+					sequences.get(lSpecies).add(lLength == lActions.length ? lActions : Arrays.copyOf(lActions, lLength));
+			}
+		}
+	}
+}
@@ -0,0 +1,363 @@
+/**
+ * Inner loops of the forward, backward and Baum-Welch algorithms of a HMM: one
+ * time step of each, for all the states.
+ *
+ * Generic runs the loops for any number of states N; for the small models
+ * (N = 2, 3 or 4, e.g. the models of the birds) the loops are written out by
+ * hand, which keeps all the values in registers and leaves no loop control
+ * nor bounds check in the way. HMM chooses the kernels with forStates(N).
+ *
+ * The written-out kernels do the same operations in the same order as the
+ * loops, so the results are exactly the same.
+ *
+ * @author fruggeri
+ */
+abstract class StateKernels {
+	private static final StateKernels N2 = new N2(), N3 = new N3(), N4 = new N4();
+
+	/**
+	 * Gets the kernels for a model.
+	 *
+	 * @param N number of states
+	 * @return written-out kernels for N = 2, 3 or 4, generic ones otherwise
+	 */
+	static StateKernels forStates(int N) {
+		switch (N) {
+		case 2:
+			return N2;
+		case 3:
+			return N3;
+		case 4:
+			return N4;
+		default:
+			return new Generic(N);
+		}
+	}
+
+	/**
+	 * Computes and scales alpha_t from alpha_t-1 (see HMM.forwardStep).
+	 *
+	 * @param MT transposed operators M_k = A * diag(B[:,k])
+	 * @param m offset of the operator of the observation at time t
+	 * @param prev array containing alpha_t-1
+	 * @param prevOff offset of alpha_t-1 in prev
+	 * @param alpha array where alpha_t is written
+	 * @param off offset of alpha_t in alpha
+	 * @return scaling factor c_t
+	 */
+	abstract double forwardStep(double[] MT, int m, double[] prev, int prevOff, double[] alpha, int off);
+
+	/**
+	 * Computes beta_t scaled by c_t from beta_t+1.
+	 *
+	 * @param A state transition matrix (row-major)
+	 * @param BT output matrix (symbol-major)
+	 * @param b offset of the observation at time t+1 in BT
+	 * @param beta beta matrix (row-major)
+	 * @param next offset of beta_t+1 in beta
+	 * @param cur offset of beta_t in beta
+	 * @param c scaling factor c_t
+	 */
+	abstract void backwardStep(double[] A, double[] BT, int b, double[] beta, int next, int cur, double c);
+
+	/**
+	 * Adds the di-gamma and gamma of time t (t < T-1) to the expected counts.
+	 *
+	 * @param alpha alpha matrix (row-major)
+	 * @param cur offset of alpha_t in alpha
+	 * @param A state transition matrix (row-major)
+	 * @param BT output matrix (symbol-major)
+	 * @param b offset of the observation at time t+1 in BT
+	 * @param beta beta matrix (row-major)
+	 * @param next offset of beta_t+1 in beta
+	 * @param e offset of the observation at time t in the emission counts
+	 * @param first true if t is 0
+	 * @param counts expected counts updated by the method
+	 */
+	abstract void expectationStep(double[] alpha, int cur, double[] A, double[] BT, int b, double[] beta, int next,
+			int e, boolean first, ExpectedCounts counts);
+
+	/**
+	 * Loops for any number of states.
+	 */
+	private static class Generic extends StateKernels {
+		private final int N;
+
+		Generic(int N) {
+			this.N = N;
+		}
+
+		@Override
+		double forwardStep(double[] MT, int m, double[] prev, int prevOff, double[] alpha, int off) {
+			double c = 0;
+			for (int i=0; i<N; i++, m+=N) {
+				double tmp = 0;
+				for (int j=0; j<N; j++)
+					tmp += prev[prevOff + j] * MT[m + j];
+				alpha[off + i] = tmp;
+				c += tmp;
+			}
+
+			// scale alpha_t
+			if (c != 0)
+				c = 1/c;
+			for (int i=0; i<N; i++)
+				alpha[off + i] *= c;
+			return c;
+		}
+
+		@Override
+		void backwardStep(double[] A, double[] BT, int b, double[] beta, int next, int cur, double c) {
+			for (int i=0; i<N; i++) {
+				double tmp = 0;
+				for (int j=0; j<N; j++)
+					tmp += A[i*N + j] * BT[b + j] * beta[next + j];
+				beta[cur + i] = tmp * c;
+			}
+		}
+
+		@Override
+		void expectationStep(double[] alpha, int cur, double[] A, double[] BT, int b, double[] beta, int next,
+				int e, boolean first, ExpectedCounts counts) {
+			for (int i = 0; i < N; i++) {
+				double gamma = 0;
+				for (int j = 0; j < N; j++) {
+					double digamma = alpha[cur + i] * A[i*N + j] * BT[b + j] * beta[next + j];
+					counts.transitions[i*N + j] += digamma;
+					gamma += digamma;
+				}
+				if (first)
+					counts.initial[i] += gamma;
+				counts.transitionsFrom[i] += gamma;
+				counts.emissions[e + i] += gamma;
+				counts.emissionsFrom[i] += gamma;
+			}
+		}
+	}
+
+	/**
+	 * Kernels for 2 states.
+	 */
+	private static class N2 extends StateKernels {
+		@Override
+		double forwardStep(double[] MT, int m, double[] prev, int prevOff, double[] alpha, int off) {
+			double p0 = prev[prevOff], p1 = prev[prevOff + 1];
+			double a0 = p0 * MT[m] + p1 * MT[m + 1];
+			double a1 = p0 * MT[m + 2] + p1 * MT[m + 3];
+			double c = a0 + a1;
+			c = c != 0 ? 1/c : 0;
+			alpha[off] = a0 * c;
+			alpha[off + 1] = a1 * c;
+			return c;
+		}
+
+		@Override
+		void backwardStep(double[] A, double[] BT, int b, double[] beta, int next, int cur, double c) {
+			double b0 = BT[b], b1 = BT[b + 1];
+			double n0 = beta[next], n1 = beta[next + 1];
+			beta[cur] = (A[0] * b0 * n0 + A[1] * b1 * n1) * c;
+			beta[cur + 1] = (A[2] * b0 * n0 + A[3] * b1 * n1) * c;
+		}
+
+		@Override
+		void expectationStep(double[] alpha, int cur, double[] A, double[] BT, int b, double[] beta, int next,
+				int e, boolean first, ExpectedCounts counts) {
+			double b0 = BT[b], b1 = BT[b + 1];
+			double n0 = beta[next], n1 = beta[next + 1];
+			double[] transitions = counts.transitions;
+			double a0 = alpha[cur];
+			double d00 = a0 * A[0] * b0 * n0;
+			double d01 = a0 * A[1] * b1 * n1;
+			transitions[0] += d00;
+			transitions[1] += d01;
+			double g0 = d00 + d01;
+			double a1 = alpha[cur + 1];
+			double d10 = a1 * A[2] * b0 * n0;
+			double d11 = a1 * A[3] * b1 * n1;
+			transitions[2] += d10;
+			transitions[3] += d11;
+			double g1 = d10 + d11;
+			if (first) {
+				counts.initial[0] += g0;
+				counts.initial[1] += g1;
+			}
+			counts.transitionsFrom[0] += g0;
+			counts.transitionsFrom[1] += g1;
+			counts.emissions[e] += g0;
+			counts.emissions[e + 1] += g1;
+			counts.emissionsFrom[0] += g0;
+			counts.emissionsFrom[1] += g1;
+		}
+	}
+
+	/**
+	 * Kernels for 3 states.
+	 */
+	private static class N3 extends StateKernels {
+		@Override
+		double forwardStep(double[] MT, int m, double[] prev, int prevOff, double[] alpha, int off) {
+			double p0 = prev[prevOff], p1 = prev[prevOff + 1], p2 = prev[prevOff + 2];
+			double a0 = p0 * MT[m] + p1 * MT[m + 1] + p2 * MT[m + 2];
+			double a1 = p0 * MT[m + 3] + p1 * MT[m + 4] + p2 * MT[m + 5];
+			double a2 = p0 * MT[m + 6] + p1 * MT[m + 7] + p2 * MT[m + 8];
+			double c = a0 + a1 + a2;
+			c = c != 0 ? 1/c : 0;
+			alpha[off] = a0 * c;
+			alpha[off + 1] = a1 * c;
+			alpha[off + 2] = a2 * c;
+			return c;
+		}
+
+		@Override
+		void backwardStep(double[] A, double[] BT, int b, double[] beta, int next, int cur, double c) {
+			double b0 = BT[b], b1 = BT[b + 1], b2 = BT[b + 2];
+			double n0 = beta[next], n1 = beta[next + 1], n2 = beta[next + 2];
+			beta[cur] = (A[0] * b0 * n0 + A[1] * b1 * n1 + A[2] * b2 * n2) * c;
+			beta[cur + 1] = (A[3] * b0 * n0 + A[4] * b1 * n1 + A[5] * b2 * n2) * c;
+			beta[cur + 2] = (A[6] * b0 * n0 + A[7] * b1 * n1 + A[8] * b2 * n2) * c;
+		}
+
+		@Override
+		void expectationStep(double[] alpha, int cur, double[] A, double[] BT, int b, double[] beta, int next,
+				int e, boolean first, ExpectedCounts counts) {
+			double b0 = BT[b], b1 = BT[b + 1], b2 = BT[b + 2];
+			double n0 = beta[next], n1 = beta[next + 1], n2 = beta[next + 2];
+			double[] transitions = counts.transitions;
+			double a0 = alpha[cur];
+			double d00 = a0 * A[0] * b0 * n0;
+			double d01 = a0 * A[1] * b1 * n1;
+			double d02 = a0 * A[2] * b2 * n2;
+			transitions[0] += d00;
+			transitions[1] += d01;
+			transitions[2] += d02;
+			double g0 = d00 + d01 + d02;
+			double a1 = alpha[cur + 1];
+			double d10 = a1 * A[3] * b0 * n0;
+			double d11 = a1 * A[4] * b1 * n1;
+			double d12 = a1 * A[5] * b2 * n2;
+			transitions[3] += d10;
+			transitions[4] += d11;
+			transitions[5] += d12;
+			double g1 = d10 + d11 + d12;
+			double a2 = alpha[cur + 2];
+			double d20 = a2 * A[6] * b0 * n0;
+			double d21 = a2 * A[7] * b1 * n1;
+			double d22 = a2 * A[8] * b2 * n2;
+			transitions[6] += d20;
+			transitions[7] += d21;
+			transitions[8] += d22;
+			double g2 = d20 + d21 + d22;
+			if (first) {
+				counts.initial[0] += g0;
+				counts.initial[1] += g1;
+				counts.initial[2] += g2;
+			}
+			counts.transitionsFrom[0] += g0;
+			counts.transitionsFrom[1] += g1;
+			counts.transitionsFrom[2] += g2;
+			counts.emissions[e] += g0;
+			counts.emissions[e + 1] += g1;
+			counts.emissions[e + 2] += g2;
+			counts.emissionsFrom[0] += g0;
+			counts.emissionsFrom[1] += g1;
+			counts.emissionsFrom[2] += g2;
+		}
+	}
+
+	/**
+	 * Kernels for 4 states.
+	 */
+	private static class N4 extends StateKernels {
+		@Override
+		double forwardStep(double[] MT, int m, double[] prev, int prevOff, double[] alpha, int off) {
+			double p0 = prev[prevOff], p1 = prev[prevOff + 1], p2 = prev[prevOff + 2], p3 = prev[prevOff + 3];
+			double a0 = p0 * MT[m] + p1 * MT[m + 1] + p2 * MT[m + 2] + p3 * MT[m + 3];
+			double a1 = p0 * MT[m + 4] + p1 * MT[m + 5] + p2 * MT[m + 6] + p3 * MT[m + 7];
+			double a2 = p0 * MT[m + 8] + p1 * MT[m + 9] + p2 * MT[m + 10] + p3 * MT[m + 11];
+			double a3 = p0 * MT[m + 12] + p1 * MT[m + 13] + p2 * MT[m + 14] + p3 * MT[m + 15];
+			double c = a0 + a1 + a2 + a3;
+			c = c != 0 ? 1/c : 0;
+			alpha[off] = a0 * c;
+			alpha[off + 1] = a1 * c;
+			alpha[off + 2] = a2 * c;
+			alpha[off + 3] = a3 * c;
+			return c;
+		}
+
+		@Override
+		void backwardStep(double[] A, double[] BT, int b, double[] beta, int next, int cur, double c) {
+			double b0 = BT[b], b1 = BT[b + 1], b2 = BT[b + 2], b3 = BT[b + 3];
+			double n0 = beta[next], n1 = beta[next + 1], n2 = beta[next + 2], n3 = beta[next + 3];
+			beta[cur] = (A[0] * b0 * n0 + A[1] * b1 * n1 + A[2] * b2 * n2 + A[3] * b3 * n3) * c;
+			beta[cur + 1] = (A[4] * b0 * n0 + A[5] * b1 * n1 + A[6] * b2 * n2 + A[7] * b3 * n3) * c;
+			beta[cur + 2] = (A[8] * b0 * n0 + A[9] * b1 * n1 + A[10] * b2 * n2 + A[11] * b3 * n3) * c;
+			beta[cur + 3] = (A[12] * b0 * n0 + A[13] * b1 * n1 + A[14] * b2 * n2 + A[15] * b3 * n3) * c;
+		}
+
+		@Override
+		void expectationStep(double[] alpha, int cur, double[] A, double[] BT, int b, double[] beta, int next,
+				int e, boolean first, ExpectedCounts counts) {
+			double b0 = BT[b], b1 = BT[b + 1], b2 = BT[b + 2], b3 = BT[b + 3];
+			double n0 = beta[next], n1 = beta[next + 1], n2 = beta[next + 2], n3 = beta[next + 3];
+			double[] transitions = counts.transitions;
+			double a0 = alpha[cur];
+			double d00 = a0 * A[0] * b0 * n0;
+			double d01 = a0 * A[1] * b1 * n1;
+			double d02 = a0 * A[2] * b2 * n2;
+			double d03 = a0 * A[3] * b3 * n3;
+			transitions[0] += d00;
+			transitions[1] += d01;
+			transitions[2] += d02;
+			transitions[3] += d03;
+			double g0 = d00 + d01 + d02 + d03;
+			double a1 = alpha[cur + 1];
+			double d10 = a1 * A[4] * b0 * n0;
+			double d11 = a1 * A[5] * b1 * n1;
+			double d12 = a1 * A[6] * b2 * n2;
+			double d13 = a1 * A[7] * b3 * n3;
+			transitions[4] += d10;
+			transitions[5] += d11;
+			transitions[6] += d12;
+			transitions[7] += d13;
+			double g1 = d10 + d11 + d12 + d13;
+			double a2 = alpha[cur + 2];
+			double d20 = a2 * A[8] * b0 * n0;
+			double d21 = a2 * A[9] * b1 * n1;
+			double d22 = a2 * A[10] * b2 * n2;
+			double d23 = a2 * A[11] * b3 * n3;
+			transitions[8] += d20;
+			transitions[9] += d21;
+			transitions[10] += d22;
+			transitions[11] += d23;
+			double g2 = d20 + d21 + d22 + d23;
+			double a3 = alpha[cur + 3];
+			double d30 = a3 * A[12] * b0 * n0;
+			double d31 = a3 * A[13] * b1 * n1;
+			double d32 = a3 * A[14] * b2 * n2;
+			double d33 = a3 * A[15] * b3 * n3;
+			transitions[12] += d30;
+			transitions[13] += d31;
+			transitions[14] += d32;
+			transitions[15] += d33;
+			double g3 = d30 + d31 + d32 + d33;
+			if (first) {
+				counts.initial[0] += g0;
+				counts.initial[1] += g1;
+				counts.initial[2] += g2;
+				counts.initial[3] += g3;
+			}
+			counts.transitionsFrom[0] += g0;
+			counts.transitionsFrom[1] += g1;
+			counts.transitionsFrom[2] += g2;
+			counts.transitionsFrom[3] += g3;
+			counts.emissions[e] += g0;
+			counts.emissions[e + 1] += g1;
+			counts.emissions[e + 2] += g2;
+			counts.emissions[e + 3] += g3;
+			counts.emissionsFrom[0] += g0;
+			counts.emissionsFrom[1] += g1;
+			counts.emissionsFrom[2] += g2;
+			counts.emissionsFrom[3] += g3;
+		}
+	}
+}
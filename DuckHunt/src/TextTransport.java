@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Transport of the messages in the text protocol (see GameServer), one line
+ * per message (MOVES takes one more line per observation). The lines are
+ * parsed in place by a ProtocolReader.
+ */
+class TextTransport implements Transport {
+    /**
+     * Create a transport reading from and writing to the given streams (e.g.
+     * System.in and System.out)
+     */
+    public TextTransport(InputStream pInputStream, PrintStream pOutputStream)
+    {
+        mInputStream = new ProtocolReader(pInputStream);
+        mOutputStream = pOutputStream;
+        mState = new ProtocolState();
+        mLine = new StringBuilder();
+    }
+
+    @Override
+    public void send(Message pMessage) throws IOException
+    {
+        mState.update(pMessage);
+        mLine.setLength(0);
+        int lType = pMessage.getType();
+        if (lType == Message.MOVES) {
+            // header, then one line per observation of all the birds
+            int lNumBirds = mState.getNumBirds();
+            mLine.append("MOVES ").append(pMessage.get(0)).append('\n');
+            for (int i = 1; i < pMessage.size(); i += lNumBirds) {
+                for (int b = 0; b < lNumBirds; ++b)
+                    mLine.append(pMessage.get(i + b)).append(' ');
+                mLine.append('\n');
+            }
+        } else if (lType == Message.ACTION || lType == Message.GUESSES) {
+            // the answers have no keyword
+            for (int i = 0; i < pMessage.size(); ++i) {
+                if (lType == Message.ACTION && i > 0)
+                    mLine.append(' ');
+                mLine.append(pMessage.get(i));
+                if (lType == Message.GUESSES)
+                    mLine.append(' ');
+            }
+            mLine.append('\n');
+        } else {
+            mLine.append(Message.cNames[lType]);
+            for (int i = 0; i < pMessage.size(); ++i)
+                mLine.append(' ').append(pMessage.get(i));
+            mLine.append('\n');
+        }
+        mOutputStream.print(mLine);
+    }
+
+    @Override
+    public boolean receive(Message pMessage) throws IOException
+    {
+        mOutputStream.flush();
+        if (!mInputStream.readLine())
+            return false;
+
+        if (mState.getAnswer() == Message.ACTION)
+            readAction(pMessage);
+        else if (mState.getAnswer() == Message.GUESSES)
+            readGuesses(pMessage);
+        else
+            readMessage(pMessage);
+        mState.update(pMessage);
+        return true;
+    }
+
+    @Override
+    public void close()
+    {
+        mOutputStream.close();
+    }
+
+    private void readMessage(Message pMessage) throws IOException
+    {
+        int lType = mInputStream.nextKeyword(cKeywords);
+        if (lType < 0)
+            throw new ProtocolException("Failed to parse message in readMessage:\n"
+                    + mInputStream.getLine());
+        pMessage.set(lType);
+
+        if (lType == Message.MOVES) {
+            int lNumMoves = mInputStream.nextInt();
+            pMessage.add(lNumMoves);
+            checkTrailing(lType);
+
+            // Read moves line by line
+            for (int i = 0; i < lNumMoves; ++i) {
+                if (!mInputStream.readLine())
+                    throw new ProtocolException(
+                            "getline failed while reading MOVES in readMessage");
+
+                for (int b = 0; b < mState.getNumBirds(); ++b)
+                    pMessage.add(mInputStream.nextMove());
+
+                if (mInputStream.hasMoreTokens())
+                    throw new ProtocolException(
+                            "Trailing input for MOVES data in readMessage");
+            }
+            return;
+        }
+
+        for (int i = mState.size(lType, 0); i > 0; --i)
+            pMessage.add(mInputStream.nextInt());
+        checkTrailing(lType);
+    }
+
+    private void readAction(Message pMessage) throws IOException
+    {
+        // anything after the action is ignored
+        pMessage.set(Message.ACTION);
+        try {
+            pMessage.add(mInputStream.nextInt());
+            pMessage.add(mInputStream.nextInt());
+        } catch (RuntimeException e) {
+            throw new ProtocolException("Failed to parse action");
+        }
+    }
+
+    private void readGuesses(Message pMessage) throws IOException
+    {
+        pMessage.set(Message.GUESSES);
+        for (int i = 0; i < mState.getNumBirds(); ++i) {
+            try {
+                pMessage.add(mInputStream.nextInt());
+            } catch (RuntimeException e) {
+                throw new ProtocolException("Failed to read guess for bird " + i);
+            }
+        }
+
+        if (mInputStream.hasMoreTokens())
+            throw new ProtocolException("Trailing output when reading guess:\n"
+                    + mInputStream.getLine());
+    }
+
+    private void checkTrailing(int pType) throws ProtocolException
+    {
+        if (mInputStream.hasMoreTokens())
+            throw new ProtocolException("Trailing input for " + Message.cNames[pType]
+                    + " in readMessage");
+    }
+
+    // keywords of the messages of the server, in the order of the types
+    private static final byte[][] cKeywords = new byte[Message.GAMEOVER + 1][];
+    static {
+        for (int k = 0; k < cKeywords.length; ++k)
+            cKeywords[k] = Message.cNames[k].getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private ProtocolReader mInputStream;
+    private PrintStream mOutputStream;
+    private ProtocolState mState;
+    private StringBuilder mLine;
+}
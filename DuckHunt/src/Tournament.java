@@ -0,0 +1,378 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plays many games in a single JVM, each between a GameServer and a Player
+ * connected by a QueueTransport, on a bounded thread pool, and prints a report
+ * of the scores, hits, guess accuracy and timeouts per environment.
+ *
+ * Usage (from the DuckHunt directory):
+ * java Tournament [threads N] [games N] [players N] [models file] [synthetic file count seed] [environment ...]
+ *
+ * threads: number of games played at the same time (default: number of
+ *          processors); the deadlines are real, so too many concurrent games
+ *          end up in timeouts
+ * games: number of games per environment (default 1)
+ * players: number of players per game (default 1), each with its own thread;
+ *          the results are per player
+ * models: species models the players start from (see Player), not written back
+ * synthetic: also plays count environments generated from the species models
+ *            of a file (see SpeciesTrainer), with the given seed
+ * By default all the *.in files of the current directory are played.
+ *
+ * @author fruggeri
+ */
+public class Tournament {
+	private static final int SYNTHETIC_ROUNDS = 10;
+	private static final int SYNTHETIC_MAX_BIRDS = 20;
+	private static final int SYNTHETIC_MOVES = 100;
+
+	// the players and the servers write a lot: their reports are discarded
+	private static final PrintStream QUIET = new PrintStream(new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	});
+
+	/**
+	 * Environment to play.
+	 */
+	private static class Environment {
+		final String name;
+		final String content;	// in the format of GameServer.load
+
+		Environment(String name, String content) {
+			this.name = name;
+			this.content = content;
+		}
+	}
+
+	/**
+	 * Result of a game.
+	 */
+	private static class Result {
+		String environment;
+		int score, hits, rightGuesses, totGuesses;
+		boolean timeout;
+		String error;		// null if the game completed
+		long timeMs;
+	}
+
+	/**
+	 * Player counting its hits and right guesses, which doesn't write its models
+	 * back.
+	 */
+	private static class CountingPlayer extends Player {
+		final Result result;
+		int[] guesses;
+		GameState state;
+
+		CountingPlayer(String modelsFile, Result result) {
+			super(modelsFile);
+			this.result = result;
+			setLog(QUIET);
+		}
+
+		@Override
+		public int[] guess(GameState pState, Deadline pDue) {
+			guesses = super.guess(pState, pDue);
+			state = pState;
+			return guesses;
+		}
+
+		@Override
+		public void hit(GameState pState, int pBird, Deadline pDue) {
+			super.hit(pState, pBird, pDue);
+			result.hits++;
+		}
+
+		@Override
+		public void reveal(GameState pState, int[] pSpecies, Deadline pDue) {
+			for (int b=0; b<pSpecies.length; b++)
+				if (guesses[b] != Constants.SPECIES_UNKNOWN) {
+					result.totGuesses++;
+					if (guesses[b] == pSpecies[b])
+						result.rightGuesses++;
+				}
+			super.reveal(pState, pSpecies, pDue);
+		}
+
+		@Override
+		public void gameOver(GameState pState) {
+			state = pState;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors(), games = 1, players = 1;
+		String modelsFile = null;
+		List<Environment> environments = new ArrayList<>();
+		for (int a=0; a<args.length; a++) {
+			if (args[a].equals("threads") && a+1 < args.length) {
+				threads = Integer.parseInt(args[++a]);
+			} else if (args[a].equals("games") && a+1 < args.length) {
+				games = Integer.parseInt(args[++a]);
+			} else if (args[a].equals("players") && a+1 < args.length) {
+				players = Integer.parseInt(args[++a]);
+			} else if (args[a].equals("models") && a+1 < args.length) {
+				modelsFile = args[++a];
+			} else if (args[a].equals("synthetic") && a+3 < args.length) {
+				HMMFile file = HMMFile.map(args[++a]);
+				int count = Integer.parseInt(args[++a]);
+				long seed = Long.parseLong(args[++a]);
+				for (int i=0; i<count; i++)
+					environments.add(new Environment("synthetic-" + seed + "-" + i, synthetic(file, new Random(seed + i))));
+			} else {
+				environments.add(load(args[a]));
+			}
+		}
+		if (environments.isEmpty()) {
+			String[] files = new File(".").list((dir, name) -> name.endsWith(".in"));
+			Arrays.sort(files);
+			for (String file : files)
+				environments.add(load(file));
+		}
+
+		// play
+		long start = System.nanoTime();
+		List<Future<List<Result>>> futures = new ArrayList<>();
+		List<Result> results = new ArrayList<>();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (Environment environment : environments)
+				for (int g=0; g<games; g++) {
+					String models = modelsFile;
+					int nPlayers = players;
+					futures.add(pool.submit(() -> play(environment, nPlayers, models)));
+				}
+			for (Future<List<Result>> future : futures)
+				results.addAll(future.get());
+		} finally {
+			pool.shutdown();
+		}
+		report(results, (System.nanoTime() - start) / 1000000);
+	}
+
+	/**
+	 * Plays a game: the first client runs in the calling thread, the server and
+	 * the other clients in new ones.
+	 *
+	 * @param environment environment
+	 * @param nPlayers number of players
+	 * @param modelsFile species models the players start from, null for none
+	 * @return result of each player
+	 */
+	private static List<Result> play(Environment environment, int nPlayers, String modelsFile)
+			throws InterruptedException {
+		long start = System.nanoTime();
+		QueueTransport[] serverEnds = new QueueTransport[nPlayers], clientEnds = new QueueTransport[nPlayers];
+		for (int p=0; p<nPlayers; p++) {
+			QueueTransport[] ends = QueueTransport.connect();
+			serverEnds[p] = ends[0];
+			clientEnds[p] = ends[1];
+		}
+
+		GameServer server = new GameServer(serverEnds);
+		server.setLog(QUIET);
+		server.load(new StringReader(environment.content));
+		List<Thread> threads = new ArrayList<>();
+		threads.add(new Thread(() -> {
+			try {
+				server.run();
+			} finally {
+				for (QueueTransport end : serverEnds)
+					end.close();
+			}
+		}, "GameServer " + environment.name));
+
+		List<Result> results = new ArrayList<>();
+		for (int p=0; p<nPlayers; p++) {
+			Result result = new Result();
+			result.environment = environment.name;
+			results.add(result);
+			QueueTransport end = clientEnds[p];
+			if (p > 0)
+				threads.add(new Thread(() -> play(end, result, modelsFile), "Player " + p + " " + environment.name));
+		}
+		for (Thread thread : threads)
+			thread.start();
+		play(clientEnds[0], results.get(0), modelsFile);
+		for (Thread thread : threads)
+			thread.join();
+
+		for (Result result : results)
+			result.timeMs = (System.nanoTime() - start) / 1000000;
+		return results;
+	}
+
+	/**
+	 * Plays a game as a client.
+	 *
+	 * @param transport end of the client
+	 * @param result result of the player, filled by the method
+	 * @param modelsFile species models the player starts from, null for none
+	 */
+	private static void play(Transport transport, Result result, String modelsFile) {
+		CountingPlayer player = new CountingPlayer(modelsFile, result);
+		try {
+			new Client(player, transport).run();
+		} catch (PlayerTimeoutException e) {
+			result.error = e.getMessage();
+			result.timeout = true;
+		} catch (Exception e) {
+			// not part of the game: report it in full
+			result.error = e.toString();
+			System.err.println("Game on " + result.environment + " failed:");
+			e.printStackTrace();
+		} finally {
+			close(transport);
+		}
+		result.score = player.state == null ? 0 : player.state.myScore();
+	}
+
+	private static void close(Transport transport) {
+		try {
+			transport.close();
+		} catch (IOException e) {
+			// the other end is already closed
+		}
+	}
+
+	/**
+	 * Prints the results per environment (averages over its games) and overall.
+	 *
+	 * @param results results of all the games
+	 * @param wallTimeMs duration of the tournament
+	 */
+	private static void report(List<Result> results, long wallTimeMs) {
+		Map<String, List<Result>> byEnvironment = new LinkedHashMap<>();
+		for (Result result : results) {
+			if (!byEnvironment.containsKey(result.environment))
+				byEnvironment.put(result.environment, new ArrayList<Result>());
+			byEnvironment.get(result.environment).add(result);
+		}
+
+		System.out.println(String.format("%-32s %6s %8s %8s %9s %8s %8s %10s", "environment", "games", "score",
+				"hits", "guesses", "right %", "timeouts", "time ms"));
+		for (Map.Entry<String, List<Result>> entry : byEnvironment.entrySet())
+			print(entry.getKey(), entry.getValue());
+		print("all", results);
+		System.out.println("wall time: " + wallTimeMs + " ms");
+
+		for (Result result : results)
+			if (result.error != null)
+				System.out.println(result.environment + ": " + result.error);
+	}
+
+	private static void print(String name, List<Result> results) {
+		double score = 0, hits = 0, guesses = 0, right = 0, timeMs = 0;
+		int timeouts = 0;
+		for (Result result : results) {
+			score += result.score;
+			hits += result.hits;
+			guesses += result.totGuesses;
+			right += result.rightGuesses;
+			timeMs += result.timeMs;
+			if (result.timeout)
+				timeouts++;
+		}
+		int n = results.size();
+		System.out.println(String.format("%-32s %6d %8.1f %8.1f %9.1f %8.1f %8d %10.0f", name, n, score / n, hits / n,
+				guesses / n, guesses == 0 ? 0 : 100 * right / guesses, timeouts, timeMs / n));
+	}
+
+	/**
+	 * Reads an environment file.
+	 *
+	 * @param fileName file name
+	 * @return environment
+	 */
+	private static Environment load(String fileName) throws IOException {
+		return new Environment(new File(fileName).getName(),
+				new String(Files.readAllBytes(Paths.get(fileName)), StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Generates an environment whose birds move as given by the species models.
+	 *
+	 * @param file species models (missing species don't appear)
+	 * @param random source of randomness
+	 * @return environment in the format of GameServer.load
+	 */
+	private static String synthetic(HMMFile file, Random random) {
+		List<Integer> species = new ArrayList<>();
+		for (int s=0; s<Math.min(file.size(), Constants.COUNT_SPECIES); s++)
+			if (file.getModel(s) != null)
+				species.add(s);
+		if (species.isEmpty())
+			throw new IllegalArgumentException("No species models");
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(SYNTHETIC_ROUNDS).append('\n');
+		for (int r=0; r<SYNTHETIC_ROUNDS; r++) {
+			int nBirds = 1 + random.nextInt(SYNTHETIC_MAX_BIRDS);
+			sb.append(nBirds).append('\n');
+			for (int b=0; b<nBirds; b++) {
+				int s = species.get(random.nextInt(species.size()));
+				sb.append(s).append('\n');
+				for (int move : sample(file.getModel(s), SYNTHETIC_MOVES, random))
+					sb.append(move).append(' ');
+				sb.append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Samples an observation sequence from a model.
+	 *
+	 * @param hmm model
+	 * @param T length
+	 * @param random source of randomness
+	 * @return observation sequence
+	 */
+	private static int[] sample(HMM hmm, int T, Random random) {
+		int N = hmm.getNumStates(), K = hmm.getNumSymbols();
+		double[] pi = hmm.getPi(), A = hmm.getA(), B = hmm.getB();
+		int[] O = new int[T];
+		int state = draw(pi, 0, N, random);
+		for (int t=0; t<T; t++) {
+			if (t > 0)
+				state = draw(A, state*N, N, random);
+			O[t] = draw(B, state*K, K, random);
+		}
+		return O;
+	}
+
+	/**
+	 * Draws an index from the distribution p[offset..offset+n-1].
+	 */
+	private static int draw(double[] p, int offset, int n, Random random) {
+		double u = random.nextDouble();
+		for (int i=0; i<n-1; i++) {
+			u -= p[offset + i];
+			if (u < 0)
+				return i;
+		}
+		return n-1;
+	}
+}
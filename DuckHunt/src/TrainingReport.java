@@ -0,0 +1,58 @@
+/**
+ * Outcome of the training of a HMM (Baum-Welch).
+ *
+ * @author fruggeri
+ */
+public class TrainingReport {
+	private final int iterations;
+	private final double logLikelihood;
+	private final long wallTimeNanos;
+	private final boolean deadlineReached;
+
+	TrainingReport(int iterations, double logLikelihood, long wallTimeNanos, boolean deadlineReached) {
+		this.iterations = iterations;
+		this.logLikelihood = logLikelihood;
+		this.wallTimeNanos = wallTimeNanos;
+		this.deadlineReached = deadlineReached;
+	}
+
+	/**
+	 * @return number of iterations completed
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * @return log-probability of the training sequences given the best
+	 *         parameters evaluated (the returned parameters are at least as good,
+	 *         since an iteration of Baum-Welch never decreases the likelihood)
+	 */
+	public double getLogLikelihood() {
+		return logLikelihood;
+	}
+
+	/**
+	 * @return wall-clock time of the training in milliseconds
+	 */
+	public double getWallTimeMs() {
+		return wallTimeNanos / 1e6;
+	}
+
+	long getWallTimeNanos() {
+		return wallTimeNanos;
+	}
+
+	/**
+	 * @return true if the training stopped because of the deadline
+	 */
+	public boolean isDeadlineReached() {
+		return deadlineReached;
+	}
+
+	@Override
+	public String toString() {
+		return "iterations: " + iterations + ", log-likelihood: " + logLikelihood + ", time: " + getWallTimeMs()
+				+ " ms" + (deadlineReached ? " (deadline reached)" : "");
+	}
+}
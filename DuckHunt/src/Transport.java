@@ -0,0 +1,32 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * One end of the connection between the GameServer and a Client, carrying the
+ * messages of the protocol (see Message). The encoding of the messages depends
+ * on the implementation:
+ *
+ * TextTransport: the text protocol, e.g. over stdin/stdout and pipes
+ * BinaryTransport: a compact binary framing of the same messages, over any
+ * pair of streams (pipes, sockets)
+ * QueueTransport: the messages themselves, between two threads of the same JVM
+ *
+ * Both ends of a connection must use the same kind of transport. The game
+ * logic and the timing (deadlines) are the same with all of them.
+ */
+interface Transport extends Closeable {
+    /**
+     * Send a message (the message can be reused as soon as the method returns)
+     */
+    void send(Message pMessage) throws IOException;
+
+    /**
+     * Receive the next message, waiting for it if needed. Any message sent
+     * before is flushed first.
+     *
+     * @param pMessage the message to fill
+     * @return false if the connection is closed
+     * @throws java.net.ProtocolException if the message is malformed
+     */
+    boolean receive(Message pMessage) throws IOException;
+}
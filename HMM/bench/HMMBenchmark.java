@@ -0,0 +1,166 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Micro-benchmarks of the HMM kernels: forward (evaluate), evaluateLog, Viterbi
+ * (decode), backward and one iteration of Baum-Welch (forward, backward,
+ * expected counts and re-estimation, always from the same initial parameters).
+ * For each shape (N, K, T) and kernel it prints the average time per operation
+ * and the bytes allocated per operation (n/a if the JVM doesn't count the
+ * allocations of a thread).
+ *
+ * The default shapes are the DuckHunt one (N=2, K=9, T=100), the HMMC ones
+ * and the observations of hmm_c_N10000.in (if run from the HMM directory).
+ * Other shapes can be given as arguments: java HMMBenchmark N K T [N K T ...]
+ *
+ * The inner loops run on the kernels chosen by HMMKernels (printed first): run
+ * with and without -Dhmm.kernels=scalar to compare them.
+ *
+ * The warm-up and measurement times (ms per kernel) can be set with the system
+ * properties bench.warmup and bench.measure.
+ *
+ * @author fruggeri
+ */
+public class HMMBenchmark {
+	private static final long WARMUP_MS = Long.getLong("bench.warmup", 1000);
+	private static final long MEASURE_MS = Long.getLong("bench.measure", 2000);
+	private static final String FILE_N10000 = "hmm_c_N10000.in";
+
+	private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	private static final boolean ALLOCATIONS = THREADS instanceof com.sun.management.ThreadMXBean
+			&& ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()
+			&& ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled();
+
+	private static volatile double sink;	// keeps the JIT from removing the computations
+
+	/**
+	 * Kernel to measure.
+	 */
+	private interface Kernel {
+		double run();
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.out.println("kernels: " + HMMKernels.INSTANCE.getName());
+		System.out.println(String.format("%-24s %-12s %14s %14s", "shape", "kernel", "ns/op", "bytes/op"));
+		if (args.length > 0) {
+			for (int a=0; a+2<args.length; a+=3) {
+				int N = Integer.parseInt(args[a]), K = Integer.parseInt(args[a+1]), T = Integer.parseInt(args[a+2]);
+				run("N=" + N + " K=" + K + " T=" + T, N, K, randomSequence(K, T));
+			}
+			return;
+		}
+
+		run("duckhunt N=2 K=9 T=100", 2, 9, randomSequence(9, 100));
+		run("hmmc N=3 K=4 T=1000", 3, 4, randomSequence(4, 1000));
+		run("hmmc N=6 K=4 T=1000", 6, 4, randomSequence(4, 1000));
+		if (new File(FILE_N10000).exists())
+			run("N10000 N=3 K=4 T=10000", 3, 4, readSequence(FILE_N10000));
+		run("N=16 K=16 T=1000", 16, 16, randomSequence(16, 1000));
+	}
+
+	/**
+	 * Measures all the kernels for a model of the given size.
+	 *
+	 * @param shape description of the shape
+	 * @param N number of states
+	 * @param K number of output symbols
+	 * @param O observation sequence
+	 */
+	private static void run(String shape, int N, int K, int[] O) {
+		HMM hmm = new HMM(N, K), initial = new HMM(N, K);
+		HMMWorkspace ws = new HMMWorkspace();
+		int[] stateSequence = new int[O.length];
+		double[] alpha = new double[O.length * N], beta = new double[O.length * N], c = new double[O.length];
+		initial.copyParameters(hmm);
+		hmm.forward(O, alpha, c);
+
+		measure(shape, "evaluate", () -> hmm.evaluate(O, ws));
+		measure(shape, "evaluateLog", () -> hmm.evaluateLog(O, ws));
+		measure(shape, "decode", () -> hmm.decode(O, stateSequence, ws));
+		measure(shape, "backward", () -> {
+			hmm.backward(O, beta, c);
+			return beta[0];
+		});
+		// each iteration starts from the same parameters (otherwise the later ones
+		// would measure a converged model)
+		measure(shape, "baumWelch", () -> {
+			hmm.copyParameters(initial);
+			return hmm.learn(O, 1, ws).getLogLikelihood();
+		});
+	}
+
+	/**
+	 * Runs a kernel for the warm-up time, then for the measurement time, and
+	 * prints the average time and allocation per operation.
+	 *
+	 * @param shape description of the shape
+	 * @param name name of the kernel
+	 * @param kernel kernel
+	 */
+	private static void measure(String shape, String name, Kernel kernel) {
+		// warm-up
+		long end = System.nanoTime() + WARMUP_MS * 1000000;
+		while (System.nanoTime() < end)
+			sink += kernel.run();
+
+		// measurement (the clock is read every batch of operations)
+		long ops = 0, batch = 1;
+		long bytes = allocatedBytes();
+		long start = System.nanoTime(), now = start;
+		end = start + MEASURE_MS * 1000000;
+		while (now < end) {
+			for (long i=0; i<batch; i++)
+				sink += kernel.run();
+			ops += batch;
+			now = System.nanoTime();
+			if (now - start < (end - start) / 100)
+				batch *= 2;
+		}
+		bytes = allocatedBytes() - bytes;
+
+		System.out.println(String.format("%-24s %-12s %14.1f %14s", shape, name, (now - start) / (double) ops,
+				ALLOCATIONS ? String.format("%.1f", bytes / (double) ops) : "n/a"));
+	}
+
+	/**
+	 * @return bytes allocated so far by the current thread, 0 if the JVM doesn't
+	 *         count them (see ALLOCATIONS)
+	 */
+	private static long allocatedBytes() {
+		if (!ALLOCATIONS)
+			return 0;
+		return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Generates a random observation sequence (fixed seed, so the runs are
+	 * comparable).
+	 *
+	 * @param K number of output symbols
+	 * @param T length
+	 * @return observation sequence
+	 */
+	private static int[] randomSequence(int K, int T) {
+		Random random = new Random(42);
+		int[] O = new int[T];
+		for (int t=0; t<T; t++)
+			O[t] = random.nextInt(K);
+		return O;
+	}
+
+	/**
+	 * Reads an observation sequence in the format of HMMC.
+	 *
+	 * @param fileName file name
+	 * @return observation sequence
+	 * @throws IOException if the file cannot be read
+	 */
+	private static int[] readSequence(String fileName) throws IOException {
+		try (HMMReader in = HMMReader.map(fileName)) {
+			return in.nextSequence();
+		}
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * Stopping criterion of Baum-Welch. After each iteration the policy tells
+ * whether the iteration made significant progress; learning stops after
+ * getPatience() + 1 consecutive iterations without significant progress (and
+ * in any case as soon as the likelihood does not increase, or the maximum
+ * number of iterations is reached).
+ * 
+ * A policy may be shared by models learning concurrently, so it should be
+ * immutable.
+ * 
+ * @author fruggeri
+ */
+public interface ConvergencePolicy {
+	
+	/**
+	 * Decides whether an iteration of Baum-Welch made significant progress.
+	 * 
+	 * @param oldLogProb log-probability of the observations given the parameters
+	 *                   before the previous iteration (-Infinity at the first one)
+	 * @param logProb log-probability of the observations given the parameters
+	 *                before the iteration
+	 * @param parameterChange largest absolute change of a parameter (pi, A or B)
+	 *                        made by the iteration
+	 * @return true if the iteration made significant progress
+	 */
+	boolean isProgress(double oldLogProb, double logProb, double parameterChange);
+	
+	/**
+	 * @return number of consecutive iterations without significant progress
+	 *         tolerated before stopping
+	 */
+	int getPatience();
+}
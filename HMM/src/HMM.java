@@ -1,14 +1,31 @@
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
 /**
  * Hidden Markov Model
  * 
  * No checks done for simplicity, but they should be added. The results are
  * unpredictable in case of wrong inputs.
  * 
+ * The parameters are stored in contiguous row-major arrays (A[i*N+j], B[i*K+k]),
+ * together with a transposed copy of A (AT[i*N+j] = A[j][i]) and a symbol-major
+ * copy of B (BT[k*N+i] = B[i][k]), so that all the inner loops have stride 1.
+ * The logarithms of pi, AT and BT used by Viterbi are computed only when needed
+ * and cached until the parameters change. The inner loops of forward, backward
+ * and Baum-Welch run on HMMKernels (vectorized if available).
+ * 
  * @author fruggeri
  */
 public class HMM {
-	private double pi[], A[][], B[][];
+	private static final int MAX_ITERS = 1000;
+	private static final int RESTART_WARMUP = 50;	// iterations before a restart can be aborted
+	private static final HMMKernels KERNELS = HMMKernels.INSTANCE;
+	
+	private double pi[], A[], AT[], B[], BT[];
+	private double logPi[], logAT[], logBT[];	// lazily computed by logParameters()
+	private volatile boolean logValid;
+	private ConvergencePolicy convergence = ToleranceConvergence.STRICT;
 	private int N, K;
 	
 	/**
@@ -26,8 +43,11 @@ public class HMM {
 		this.N = N;
 		this.K = K;
 		this.pi = pi;
-		this.A = A;
-		this.B = B;
+		this.A = Matrix.flatten(A);
+		this.B = Matrix.flatten(B);
+		AT = new double[N*N];
+		BT = new double[K*N];
+		parametersChanged();
 	}
 	
 	/**
@@ -40,12 +60,15 @@ public class HMM {
 	public HMM(int N, int K) {
 		this.N = N;
 		this.K = K;
-		A = Matrix.randomRowStochastic(N, N);
-		B = Matrix.randomRowStochastic(N, K);
+		A = Matrix.flatten(Matrix.randomRowStochastic(N, N));
+		B = Matrix.flatten(Matrix.randomRowStochastic(N, K));
 		pi = new double[N];
 		double[][] tmp = Matrix.randomRowStochastic(1, N);
 		for (int i=0; i<N; i++)
 			this.pi[i] = tmp[0][i];
+		AT = new double[N*N];
+		BT = new double[K*N];
+		parametersChanged();
 	}
 
 	/**
@@ -55,9 +78,17 @@ public class HMM {
 	 * @return next observation distribution
 	 */
 	public double[] nextObservationDistribution() {
-		double[] result;
-		result = Matrix.vectorByMatrix(pi, A);
-		result = Matrix.vectorByMatrix(result, B);
+		double[] result = new double[K], tmp = new double[N];
+		
+		// pi * A
+		for (int i=0; i<N; i++)
+			for (int j=0; j<N; j++)
+				tmp[i] += pi[j] * AT[i*N + j];
+		
+		// (pi * A) * B
+		for (int k=0; k<K; k++)
+			for (int i=0; i<N; i++)
+				result[k] += tmp[i] * BT[k*N + i];
 		return result;
 	}
 	
@@ -69,13 +100,25 @@ public class HMM {
 	 * @return probability of observation sequence
 	 */
 	public double evaluate(int[] observationSequence) {
-		double result, alpha[][], c[];
+		return evaluate(observationSequence, HMMWorkspace.local());
+	}
+	
+	/**
+	 * Computes the probability of the observation sequence using the buffers of
+	 * the given workspace.
+	 * 
+	 * @param observationSequence observation sequence
+	 * @param ws workspace
+	 * @return probability of observation sequence
+	 */
+	public double evaluate(int[] observationSequence, HMMWorkspace ws) {
+		double result, c[];
 		int T = observationSequence.length;
 		
 		// forward algorithm
-		alpha = new double[T][N];
-		c = new double[T];
-		forward(observationSequence, alpha, c);
+		ws.ensure(T, N, K);
+		c = ws.c;
+		forward(observationSequence, ws.alpha, c);
 		
 		// compute result
 		result = c[0];
@@ -92,13 +135,25 @@ public class HMM {
 	 * @return log-probability of observation sequence
 	 */
 	public double evaluateLog(int[] observationSequence) {
-		double result, alpha[][], c[];
+		return evaluateLog(observationSequence, HMMWorkspace.local());
+	}
+	
+	/**
+	 * Computes the log-probability of the observation sequence using the buffers
+	 * of the given workspace.
+	 * 
+	 * @param observationSequence observation sequence
+	 * @param ws workspace
+	 * @return log-probability of observation sequence
+	 */
+	public double evaluateLog(int[] observationSequence, HMMWorkspace ws) {
+		double result, c[];
 		int T = observationSequence.length;
 		
 		// forward algorithm
-		alpha = new double[T][N];
-		c = new double[T];
-		forward(observationSequence, alpha, c);
+		ws.ensure(T, N, K);
+		c = ws.c;
+		forward(observationSequence, ws.alpha, c);
 		
 		// compute result
 		result = 0;
@@ -117,57 +172,176 @@ public class HMM {
 	public int[] decode(int[] observationSequence) {
 		int T = observationSequence.length;
 		int[] stateSequence = new int[T];
-		viterbi(observationSequence, stateSequence);
+		decode(observationSequence, stateSequence, HMMWorkspace.local());
 		return stateSequence;
 	}
 	
+	/**
+	 * Finds the most likely state sequence given the observations, using the
+	 * buffers of the given workspace.
+	 * 
+	 * @param observationSequence observation sequence
+	 * @param stateSequence preallocated array filled by the method
+	 * @param ws workspace
+	 * @return log-probability of the most likely state sequence
+	 */
+	public double decode(int[] observationSequence, int[] stateSequence, HMMWorkspace ws) {
+		ws.ensure(observationSequence.length, N, K);
+		return viterbi(observationSequence, stateSequence, ws);
+	}
+	
 	/**
 	 * Estimates the model parameters from the observation sequence.
 	 * 
 	 * @param observationSequence observation sequence
+	 * @return training report
+	 */
+	public TrainingReport learn(int[] observationSequence) {
+		return learn(observationSequence, HMMWorkspace.local());
+	}
+	
+	/**
+	 * Estimates the model parameters from the observation sequence using the
+	 * buffers of the given workspace.
+	 * 
+	 * @param observationSequence observation sequence
+	 * @param ws workspace
+	 * @return training report
+	 */
+	public TrainingReport learn(int[] observationSequence, HMMWorkspace ws) {
+		return learn(observationSequence, MAX_ITERS, ws);
+	}
+	
+	/**
+	 * Estimates the model parameters from the observation sequence with at most
+	 * the given number of iterations.
+	 * 
+	 * @param observationSequence observation sequence
+	 * @param maxIters maximum number of iterations
+	 * @param ws workspace
+	 * @return training report
 	 */
-	public void learn(int[] observationSequence) {
-		baumWelch(observationSequence, 1000);
+	public TrainingReport learn(int[] observationSequence, int maxIters, HMMWorkspace ws) {
+		ws.ensureLearning(observationSequence.length, N, K);
+		return baumWelch(observationSequence, maxIters, ws, null);
+	}
+	
+	/**
+	 * Estimates the model parameters from the observation sequence with random
+	 * restarts: the current parameters and restarts-1 random initializations (as
+	 * in HMM(N, K)) are learned concurrently, and the best model is kept. A
+	 * restart is aborted when, even if its log-likelihood kept increasing at the
+	 * current rate, it could not reach the best log-likelihood of the others.
+	 * 
+	 * @param observationSequence observation sequence
+	 * @param restarts number of restarts (at least 1)
+	 * @param parallelism number of threads (at least 1)
+	 * @return training report of the best restart (with the wall time of the
+	 *         whole training)
+	 * @throws IllegalArgumentException if restarts or parallelism is less than 1
+	 */
+	public TrainingReport learnWithRestarts(int[] observationSequence, int restarts, int parallelism) {
+		if (restarts < 1)
+			throw new IllegalArgumentException("restarts must be at least 1: " + restarts);
+		if (parallelism < 1)
+			throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+		long begin = System.nanoTime();
+		RestartRace race = new RestartRace(RESTART_WARMUP);
+		HMM[] models = new HMM[restarts];
+		TrainingReport[] reports = new TrainingReport[restarts];
+		ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[restarts];
+		
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			// fork
+			for (int r = 0; r < restarts; r++) {
+				final int restart = r;
+				models[r] = new HMM(N, K);
+				if (r == 0)
+					models[r].copyParameters(this);
+				models[r].convergence = convergence;
+				tasks[r] = pool.submit(() -> {
+					HMMWorkspace ws = HMMWorkspace.local();
+					ws.ensureLearning(observationSequence.length, N, K);
+					reports[restart] = models[restart].baumWelch(observationSequence, MAX_ITERS, ws, race);
+				});
+			}
+			
+			// join
+			for (int r = 0; r < restarts; r++)
+				tasks[r].join();
+		} finally {
+			pool.shutdown();
+		}
+		
+		// keep the best model
+		int best = 0;
+		for (int r = 1; r < restarts; r++)
+			if (reports[r].getLogLikelihood() > reports[best].getLogLikelihood())
+				best = r;
+		copyParameters(models[best]);
+		return new TrainingReport(reports[best].getIterations(), reports[best].getLogLikelihood(),
+				System.nanoTime() - begin);
+	}
+	
+	/**
+	 * Sets the stopping criterion of learning (by default learning stops as soon
+	 * as the likelihood does not increase).
+	 * 
+	 * @param convergence convergence policy
+	 */
+	public void setConvergencePolicy(ConvergencePolicy convergence) {
+		this.convergence = convergence;
+	}
+	
+	/**
+	 * @return convergence policy
+	 */
+	public ConvergencePolicy getConvergencePolicy() {
+		return convergence;
 	}
 	
 	/**
 	 * Forward algorithm (a.k.a. alpha-pass).
 	 * 
 	 * @param O observation sequence
-	 * @param alpha preallocated matrix filled by the method
+	 * @param alpha preallocated T x N matrix (row-major) filled by the method
 	 * @param c preallocated array filled by the method
 	 */
-	private void forward(int[] O, double[][] alpha, double[] c) {
+	void forward(int[] O, double[] alpha, double[] c) {
 		int T = O.length;
 		
 		// compute alpha_0
+		int b = O[0] * N;
 		c[0] = 0;
 		for (int i=0; i<N; i++) {
-			alpha[0][i] = pi[i] * B[i][O[0]];
-			c[0] += alpha[0][i];
+			alpha[i] = pi[i] * BT[b + i];
+			c[0] += alpha[i];
 		}
 		
 		// scale alpha_0
 		c[0] = 1/c[0];
 		for (int i=0; i<N; i++)
-			alpha[0][i] *= c[0];
+			alpha[i] *= c[0];
 		
 		// 0 < t < T
 		for (int t=1; t<T; t++) {
+			int prev = (t-1) * N, cur = t * N;
+			b = O[t] * N;
+			
 			// compute alpha_t
 			c[t] = 0;
 			for (int i=0; i<N; i++) {
-				alpha[t][i] = 0;
-				for (int j=0; j<N; j++)
-					alpha[t][i] += alpha[t-1][j] * A[j][i];
-				alpha[t][i] *= B[i][O[t]];
-				c[t] += alpha[t][i];
+				double tmp = KERNELS.dot(alpha, prev, AT, i*N, N);
+				tmp *= BT[b + i];
+				alpha[cur + i] = tmp;
+				c[t] += tmp;
 			}
 			
 			// scale alpha_t
 			c[t] = 1/c[t];
 			for (int i=0; i<N; i++)
-				alpha[t][i] *= c[t];
+				alpha[cur + i] *= c[t];
 		}
 	}
 	
@@ -176,50 +350,56 @@ public class HMM {
 	 * 
 	 * @param O observation sequence
 	 * @param stateSequence preallocated array filled by the method
+	 * @param ws workspace providing the buffers
 	 * @return log probability of the most likely state sequence
 	 */
-	private double viterbi(int[] O, int[] stateSequence) {
-		int T = O.length;
-		double[][] delta = new double[T][N];
-		int[][] deltaIdx = new int[T][N];
+	private double viterbi(int[] O, int[] stateSequence, HMMWorkspace ws) {
+		int T = O.length, last = (T-1) * N;
+		double[] delta = ws.delta;
+		int[] deltaIdx = ws.deltaIdx;
 		double logProb = Double.NEGATIVE_INFINITY;
 		
+		logParameters();
+		
 		// compute delta_0
 		for (int i = 0; i < N; i++)
-			delta[0][i] = Math.log(pi[i] * B[i][O[0]]);
+			delta[i] = logPi[i] + logBT[O[0]*N + i];
 
 		// compute delta_t, 0<t<T 
 		for (int t = 1; t < T; t++) {
+			int prev = (t-1) * N, cur = t * N, b = O[t] * N;
 			for (int i = 0; i < N; i++) {
 				// initialize using state 0
-				delta[t][i] = delta[t - 1][0] + Math.log(A[0][i]) + Math.log(B[i][O[t]]);
-				deltaIdx[t][i] = 0;
+				double max = delta[prev] + logAT[i*N];
+				int maxIdx = 0;
 
 				// search max
 				for (int j = 1; j < N; j++) {
-					double tmp = delta[t - 1][j] + Math.log(A[j][i]) + Math.log(B[i][O[t]]);
-					if (tmp > delta[t][i]) {
-						delta[t][i] = tmp;
-						deltaIdx[t][i] = j;
+					double tmp = delta[prev + j] + logAT[i*N + j];
+					if (tmp > max) {
+						max = tmp;
+						maxIdx = j;
 					}
 				}
+				delta[cur + i] = max + logBT[b + i];
+				deltaIdx[cur + i] = maxIdx;
 			}
 		}
 
 		// search last state
 		stateSequence[T-1] = 0; // initialize to state 0
 		for (int i = 1; i < N; i++) // search max delta
-			if (delta[T-1][i] > delta[T-1][stateSequence[T-1]])
+			if (delta[last + i] > delta[last + stateSequence[T-1]])
 				stateSequence[T - 1] = i;
 
 		// backtrack
 		for (int t = T - 2; t >= 0; t--)
-			stateSequence[t] = deltaIdx[t+1][stateSequence[t+1]];
+			stateSequence[t] = deltaIdx[(t+1)*N + stateSequence[t+1]];
 		
 		// compute log probability
 		for (int i=0; i<N; i++)
-			if (delta[T-1][i] > logProb)
-				logProb = delta[T-1][i];
+			if (delta[last + i] > logProb)
+				logProb = delta[last + i];
 		return logProb;
 	}
 	
@@ -227,111 +407,203 @@ public class HMM {
 	 * Backward algorithm (a.k.a. beta-pass).
 	 * 
 	 * @param O observation sequence
-	 * @param beta preallocated matrix filled by the method
+	 * @param beta preallocated T x N matrix (row-major) filled by the method
 	 * @param c scaling factors found with forward algorithm
 	 */
-	private void backward(int[] O, double[][] beta, double[] c) {
+	void backward(int[] O, double[] beta, double[] c) {
 		int T = O.length;
 		
 		// compute beta_T-1 scaled by c_T-1
 		for (int i=0; i<N; i++)
-			beta[T-1][i] = c[T-1];
+			beta[(T-1)*N + i] = c[T-1];
 		
 		// compute beta_t scaled by c_t, 0<=t<T-1
 		for (int t=T-2; t>=0; t--) {
-			for (int i=0; i<N; i++) {
-				beta[t][i] = 0;
-				for (int j=0; j<N; j++)
-					beta[t][i] += A[i][j] * B[j][O[t+1]] * beta[t+1][j];
-				beta[t][i] *= c[t];
-			}
+			int cur = t * N, next = (t+1) * N, b = O[t+1] * N;
+			for (int i=0; i<N; i++)
+				beta[cur + i] = KERNELS.dot(A, i*N, BT, b, beta, next, N) * c[t];
 		}
 	}
 	
 	/**
 	 * Baum-Welch algorithm.
 	 * 
+	 * The expected transition and emission counts are accumulated directly during
+	 * the E-step, so no di-gamma (T x N x N) or gamma (T x N) matrix is stored.
+	 * 
+	 * Learning stops when the likelihood does not increase, or when the
+	 * convergence policy finds no significant progress in more than its patience
+	 * consecutive iterations, or when the race finds it hopeless.
+	 * 
 	 * @param O observation sequence
 	 * @param maxIters maximum number of iterations
+	 * @param ws workspace providing the buffers
+	 * @param race restarts learning concurrently, null if none
+	 * @return training report
 	 */
-	private void baumWelch(int[] O, int maxIters) {
-		int T = O.length, iters = 0;
-		double[] c = new double[T];
-		double[][] alpha = new double[T][N];
-		double[][] beta = new double[T][N];
-		double[][] gamma = new double[T][N];
-		double[][][] digamma = new double[T][N][N];
-		double numer, denom, logProb = Double.NEGATIVE_INFINITY, oldLogProb;
+	private TrainingReport baumWelch(int[] O, int maxIters, HMMWorkspace ws, RestartRace race) {
+		int iters = 0, stalled = 0;
+		long begin = System.nanoTime();
+		ExpectedCounts counts = ws.counts;
+		double logProb = Double.NEGATIVE_INFINITY, oldLogProb;
 
 		do {
 			oldLogProb = logProb;
+			
+			// E-step
+			counts.clear();
+			logProb = expectation(O, ws, counts);
+			
+			// M-step
+			double parameterChange = maximization(counts);
+			iters++;
+			
+			// convergence
+			if (convergence.isProgress(oldLogProb, logProb, parameterChange))
+				stalled = 0;
+			else
+				stalled++;
+		} while (iters < maxIters && logProb > oldLogProb && stalled <= convergence.getPatience()
+				&& (race == null || !race.isHopeless(iters, maxIters, oldLogProb, logProb)));
+		return new TrainingReport(iters, logProb, System.nanoTime() - begin);
+	}
+	
+	/**
+	 * E-step of Baum-Welch: runs the alpha-pass and the beta-pass and adds the
+	 * expected counts of the observation sequence to counts.
+	 * 
+	 * @param O observation sequence
+	 * @param ws workspace providing the buffers
+	 * @param counts expected counts updated by the method
+	 * @return log-probability of the observation sequence
+	 */
+	private double expectation(int[] O, HMMWorkspace ws, ExpectedCounts counts) {
+		int T = O.length;
+		double[] c = ws.c;
+		double[] alpha = ws.alpha;
+		double[] beta = ws.beta;
+		double logProb;
+		
+		// alpha-pass
+		forward(O, alpha, c);
 
-			// alpha-pass
-			forward(O, alpha, c);
-
-			// beta-pass
-			backward(O, beta, c);
-
-			// compute di-gamma and gamma
-			for (int t = 0; t < T - 1; t++) {
-				for (int i = 0; i < N; i++) {
-					gamma[t][i] = 0;
-					for (int j = 0; j < N; j++) {
-						digamma[t][i][j] = alpha[t][i] * A[i][j] * B[j][O[t + 1]] * beta[t + 1][j];
-						gamma[t][i] += digamma[t][i][j];
-					}
-				}
-			}
-			// special case for gammaT-1(i)
-			for (int i = 0; i < N; i++)
-				gamma[T - 1][i] = alpha[T - 1][i];
+		// beta-pass
+		backward(O, beta, c);
 
-			// re-estimate pi
-			for (int i = 0; i < N; i++)
-				pi[i] = gamma[0][i];
-			
-			// re-estimate A
+		// accumulate di-gamma and gamma
+		for (int t = 0; t < T - 1; t++) {
+			int cur = t * N, next = (t + 1) * N, b = O[t + 1] * N, e = O[t] * N;
 			for (int i = 0; i < N; i++) {
-				denom = 0.0;
-				for (int t = 0; t < T - 1; t++)
-					denom += gamma[t][i];
-				for (int j = 0; j < N; j++) {
-					numer = 0.0;
-					for (int t = 0; t < T - 1; t++)
-						numer += digamma[t][i][j];
-					A[i][j] = numer / denom;
-				}
+				// di-gamma_t(i,j) for all j
+				double gamma = KERNELS.accumulate(alpha[cur + i], A, i*N, BT, b, beta, next,
+						counts.transitions, i*N, N);
+				if (t == 0)
+					counts.initial[i] += gamma;
+				counts.transitionsFrom[i] += gamma;
+				counts.emissions[e + i] += gamma;
+				counts.emissionsFrom[i] += gamma;
 			}
-			
-			// re-estimate B
-			for (int i = 0; i < N; i++) {
-				denom = 0.0;
-				for (int t = 0; t < T; t++)
-					denom += gamma[t][i];
-				for (int j = 0; j < K; j++) {
-					numer = 0.0;
-					for (int t = 0; t < T; t++)
-						if (O[t] == j)
-							numer += gamma[t][i];
-					B[i][j] = numer / denom;
-				}
+		}
+		// special case for gammaT-1(i)
+		int last = (T - 1) * N, e = O[T - 1] * N;
+		for (int i = 0; i < N; i++) {
+			if (T == 1)
+				counts.initial[i] += alpha[last + i];
+			counts.emissions[e + i] += alpha[last + i];
+			counts.emissionsFrom[i] += alpha[last + i];
+		}
+		
+		// compute log-probability
+		logProb = 0.0;
+		for (int t = 0; t < T; t++)
+			logProb += Math.log(c[t]);
+		return -logProb;
+	}
+	
+	/**
+	 * M-step of Baum-Welch: re-estimates the model parameters from the expected
+	 * counts.
+	 * 
+	 * @param counts expected counts
+	 * @return largest absolute change of a parameter
+	 */
+	private double maximization(ExpectedCounts counts) {
+		double change = 0, old;
+		
+		// re-estimate pi
+		for (int i = 0; i < N; i++) {
+			old = pi[i];
+			pi[i] = counts.initial[i];
+			change = Math.max(change, Math.abs(pi[i] - old));
+		}
+		
+		// re-estimate A
+		for (int i = 0; i < N; i++)
+			change = Math.max(change, KERNELS.divide(counts.transitions, i*N, counts.transitionsFrom[i], A, i*N, N));
+		
+		// re-estimate B
+		for (int i = 0; i < N; i++)
+			for (int k = 0; k < K; k++) {
+				old = B[i*K + k];
+				B[i*K + k] = counts.emissions[k*N + i] / counts.emissionsFrom[i];
+				change = Math.max(change, Math.abs(B[i*K + k] - old));
 			}
-
-			// repeat?
-			logProb = 0.0;
-			for (int i = 0; i < T; i++)
-				logProb += Math.log(c[i]);
-			logProb = -logProb;
-			iters++;
-		} while (iters < maxIters && logProb > oldLogProb);
+		parametersChanged();
+		return change;
+	}
+	
+	/**
+	 * Copies the parameters of another model with the same N and K.
+	 * 
+	 * @param other model
+	 */
+	void copyParameters(HMM other) {
+		System.arraycopy(other.pi, 0, pi, 0, N);
+		System.arraycopy(other.A, 0, A, 0, N*N);
+		System.arraycopy(other.B, 0, B, 0, N*K);
+		parametersChanged();
+	}
+	
+	/**
+	 * Refreshes the transposed copies AT and BT and invalidates the cached
+	 * logarithms. To be called whenever pi, A or B change.
+	 */
+	private void parametersChanged() {
+		Matrix.transpose(A, N, N, AT);
+		Matrix.transpose(B, N, K, BT);
+		logValid = false;
+	}
+	
+	/**
+	 * Computes the logarithms of pi, AT and BT, unless they are already cached.
+	 */
+	private void logParameters() {
+		if (logValid)
+			return;
+		synchronized (this) {
+			if (logValid)
+				return;
+			if (logPi == null) {
+				logPi = new double[N];
+				logAT = new double[N*N];
+				logBT = new double[K*N];
+			}
+			for (int i=0; i<N; i++)
+				logPi[i] = Math.log(pi[i]);
+			for (int i=0; i<N*N; i++)
+				logAT[i] = Math.log(AT[i]);
+			for (int i=0; i<K*N; i++)
+				logBT[i] = Math.log(BT[i]);
+			logValid = true;
+		}
 	}
 	
 	@Override
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
-		sb.append(Matrix.matrixToString(A));
+		sb.append(Matrix.matrixToString(A, N, N));
 		sb.append("\n");
-		sb.append(Matrix.matrixToString(B));
+		sb.append(Matrix.matrixToString(B, N, K));
 		return sb.toString();
 	}
 	
@@ -1,10 +1,8 @@
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.Scanner;
+import java.io.IOException;
 
 public class HMMC {
 	
-	public static void main(String[] args) throws FileNotFoundException {
+	public static void main(String[] args) throws IOException {
 		// generating model
 		double[][] genA = {
 				{0.7, 0.05, 0.25},
@@ -85,16 +83,15 @@ public class HMMC {
 		
 		// observations
 		int[] O;
-		try (Scanner s = new Scanner(new File("hmm_c_N1000.in"))) {
-//		try (Scanner s = new Scanner(new File("hmm_c_N10000.in"))) {
-			int T = s.nextInt();
-			O = new int[T];
-			for (int t=0; t<T; t++)
-				O[t] = s.nextInt();
+		try (HMMReader in = HMMReader.map("hmm_c_N1000.in")) {
+//		try (HMMReader in = HMMReader.map("hmm_c_N10000.in")) {
+			O = in.nextSequence();
 		}
 		
-		// learn hmm
-		hmm.learn(O);
+		// learn hmm (stop when the log-likelihood improves by less than 1e-9 relative
+		// for more than 10 iterations), keeping the best of 8 restarts
+		hmm.setConvergencePolicy(new ToleranceConvergence(0, 1e-9, 0, 10));
+		System.err.println(hmm.learnWithRestarts(O, 8, Runtime.getRuntime().availableProcessors()));
 		System.out.println(hmm);
 		System.out.println("Distance: " + 1/ (double) O.length * (hmm.evaluateLog(O) - genHmm.evaluateLog(O)));
 	}
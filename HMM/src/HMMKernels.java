@@ -0,0 +1,116 @@
+/**
+ * Inner loops of the forward, backward and Baum-Welch algorithms, over vectors
+ * of length N with stride 1.
+ *
+ * The implementation is chosen once, when the class is loaded: VectorKernels
+ * (see the vector directory), which uses the SIMD instructions of the machine
+ * through jdk.incubator.vector, if it has been compiled and the JVM runs with
+ * --add-modules jdk.incubator.vector; otherwise the scalar loops below. The
+ * system property hmm.kernels=scalar forces the scalar loops.
+ *
+ * The vector kernels add up the products in a different order, so their
+ * results differ from the scalar ones by rounding: a relative difference of
+ * about N * 1e-16 for each sum, which gives log-likelihoods equal to about
+ * 1e-12 relative (the iterations of Baum-Welch can then drift apart slowly).
+ *
+ * @author fruggeri
+ */
+abstract class HMMKernels {
+	static final HMMKernels INSTANCE = select();
+
+	/**
+	 * @return sum of a[aOff+j] * b[bOff+j], 0 <= j < n
+	 */
+	abstract double dot(double[] a, int aOff, double[] b, int bOff, int n);
+
+	/**
+	 * @return sum of a[aOff+j] * b[bOff+j] * c[cOff+j], 0 <= j < n
+	 */
+	abstract double dot(double[] a, int aOff, double[] b, int bOff, double[] c, int cOff, int n);
+
+	/**
+	 * Adds s * a[aOff+j] * b[bOff+j] * c[cOff+j] to acc[accOff+j], 0 <= j < n.
+	 *
+	 * @return sum of the terms added
+	 */
+	abstract double accumulate(double s, double[] a, int aOff, double[] b, int bOff, double[] c, int cOff,
+			double[] acc, int accOff, int n);
+
+	/**
+	 * Sets dst[dstOff+j] to src[srcOff+j] / d, 0 <= j < n.
+	 *
+	 * @return largest absolute change of an element of dst
+	 */
+	abstract double divide(double[] src, int srcOff, double d, double[] dst, int dstOff, int n);
+
+	/**
+	 * @return name of the implementation
+	 */
+	abstract String getName();
+
+	/**
+	 * Chooses the implementation.
+	 *
+	 * @return vector kernels if available (and not disabled), scalar ones otherwise
+	 */
+	private static HMMKernels select() {
+		if (!"scalar".equals(System.getProperty("hmm.kernels"))) {
+			try {
+				return (HMMKernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException | LinkageError e) {
+				// not compiled, or the JVM doesn't have jdk.incubator.vector
+			}
+		}
+		return new Scalar();
+	}
+
+	/**
+	 * Plain loops (which the JIT unrolls but doesn't vectorize, the sums being
+	 * reductions).
+	 */
+	static class Scalar extends HMMKernels {
+		@Override
+		double dot(double[] a, int aOff, double[] b, int bOff, int n) {
+			double sum = 0;
+			for (int j=0; j<n; j++)
+				sum += a[aOff + j] * b[bOff + j];
+			return sum;
+		}
+
+		@Override
+		double dot(double[] a, int aOff, double[] b, int bOff, double[] c, int cOff, int n) {
+			double sum = 0;
+			for (int j=0; j<n; j++)
+				sum += a[aOff + j] * b[bOff + j] * c[cOff + j];
+			return sum;
+		}
+
+		@Override
+		double accumulate(double s, double[] a, int aOff, double[] b, int bOff, double[] c, int cOff,
+				double[] acc, int accOff, int n) {
+			double sum = 0;
+			for (int j=0; j<n; j++) {
+				double tmp = s * a[aOff + j] * b[bOff + j] * c[cOff + j];
+				acc[accOff + j] += tmp;
+				sum += tmp;
+			}
+			return sum;
+		}
+
+		@Override
+		double divide(double[] src, int srcOff, double d, double[] dst, int dstOff, int n) {
+			double change = 0;
+			for (int j=0; j<n; j++) {
+				double old = dst[dstOff + j];
+				dst[dstOff + j] = src[srcOff + j] / d;
+				change = Math.max(change, Math.abs(dst[dstOff + j] - old));
+			}
+			return change;
+		}
+
+		@Override
+		String getName() {
+			return "scalar";
+		}
+	}
+}
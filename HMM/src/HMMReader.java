@@ -0,0 +1,300 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+
+/**
+ * Reader of the input format of the HMM programs: whitespace-separated tokens,
+ * with matrices written as "rows cols values..." (row-major) and observation
+ * sequences as "T o_1 ... o_T".
+ *
+ * Unlike Scanner, it works directly on the bytes, without regular expressions,
+ * reading a stream through an internal buffer or a (memory-mapped) byte
+ * buffer. Decimal numbers with at most 15 significant digits and small
+ * exponents are converted exactly by a fast path, the others (e.g. long
+ * tokens) by Double.parseDouble, so the values are always the same as
+ * Scanner's (in the root locale: the decimal separator is always '.').
+ *
+ * @author fruggeri
+ */
+public class HMMReader implements Closeable {
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int TOKEN_SIZE = 64;		// initial size of the token buffer, grown as needed
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+	private static final double[] POW10 = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private final InputStream in;		// null when reading a byte buffer
+	private final ByteBuffer source;	// null when reading a stream
+	private final byte[] buffer;
+	private byte[] token;
+	private int pos, limit;
+
+	/**
+	 * Constructs a reader of a stream (e.g. System.in). The stream should not be
+	 * buffered, as the reader does its own buffering.
+	 *
+	 * @param in input stream
+	 */
+	public HMMReader(InputStream in) {
+		this.in = in;
+		this.source = null;
+		buffer = new byte[BUFFER_SIZE];
+		token = new byte[TOKEN_SIZE];
+	}
+
+	/**
+	 * Constructs a reader of the remaining bytes of a buffer.
+	 *
+	 * @param source byte buffer (e.g. a memory-mapped file)
+	 */
+	public HMMReader(ByteBuffer source) {
+		this.in = null;
+		this.source = source;
+		buffer = new byte[BUFFER_SIZE];
+		token = new byte[TOKEN_SIZE];
+	}
+
+	/**
+	 * Constructs a reader of a memory-mapped file.
+	 *
+	 * @param fileName file name
+	 * @return reader
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public static HMMReader map(String fileName) throws IOException {
+		// the mapping stays valid after the channel is closed
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			return new HMMReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Reads a matrix in the format "rows cols values...".
+	 *
+	 * @return rows x cols matrix
+	 */
+	public double[][] nextMatrix() {
+		int rows = nextInt(), cols = nextInt();
+		double[][] m = new double[rows][cols];
+		for (int i=0; i<rows; i++)
+			for (int j=0; j<cols; j++)
+				m[i][j] = nextDouble();
+		return m;
+	}
+
+	/**
+	 * Reads a vector written as a 1 x N matrix ("1 N values...").
+	 *
+	 * @return vector
+	 */
+	public double[] nextVector() {
+		nextInt();		// skip rows (== 1)
+		double[] v = new double[nextInt()];
+		for (int i=0; i<v.length; i++)
+			v[i] = nextDouble();
+		return v;
+	}
+
+	/**
+	 * Reads an observation sequence in the format "T o_1 ... o_T".
+	 *
+	 * @return observation sequence
+	 */
+	public int[] nextSequence() {
+		int[] O = new int[nextInt()];
+		for (int t=0; t<O.length; t++)
+			O[t] = nextInt();
+		return O;
+	}
+
+	/**
+	 * Reads an integer.
+	 *
+	 * @return integer
+	 * @throws NoSuchElementException if the input is exhausted
+	 * @throws InputMismatchException if the next token is not an integer
+	 */
+	public int nextInt() {
+		int length = nextToken();
+		int i = 0;
+		boolean negative = false;
+		if (token[0] == '-' || token[0] == '+') {
+			negative = token[0] == '-';
+			i++;
+		}
+		if (i == length || length > 11)
+			return parseIntSlow(length);
+
+		long value = 0;
+		for (; i<length; i++) {
+			int digit = token[i] - '0';
+			if (digit < 0 || digit > 9)
+				throw mismatch(length);
+			value = 10 * value + digit;
+		}
+		if (negative)
+			value = -value;
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			throw mismatch(length);
+		return (int) value;
+	}
+
+	/**
+	 * Reads a decimal number.
+	 *
+	 * @return number
+	 * @throws NoSuchElementException if the input is exhausted
+	 * @throws InputMismatchException if the next token is not a number
+	 */
+	public double nextDouble() {
+		int length = nextToken();
+		int i = 0, digits = 0, exponent = 0;
+		long mantissa = 0;
+		boolean negative = false;
+
+		// sign
+		if (token[0] == '-' || token[0] == '+') {
+			negative = token[0] == '-';
+			i++;
+		}
+
+		// integer part
+		int start = i;
+		for (; i<length && token[i] >= '0' && token[i] <= '9'; i++) {
+			mantissa = 10 * mantissa + (token[i] - '0');
+			if (mantissa != 0)
+				digits++;
+		}
+		int integerDigits = i - start;
+
+		// fractional part
+		int fractionDigits = 0;
+		if (i < length && token[i] == '.') {
+			i++;
+			for (; i<length && token[i] >= '0' && token[i] <= '9'; i++, fractionDigits++) {
+				mantissa = 10 * mantissa + (token[i] - '0');
+				if (mantissa != 0)
+					digits++;
+				exponent--;
+			}
+		}
+		if (integerDigits + fractionDigits == 0 || digits > 15)
+			return parseDoubleSlow(length);
+
+		// exponent
+		if (i < length && (token[i] == 'e' || token[i] == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < length && (token[i] == '-' || token[i] == '+')) {
+				negativeExponent = token[i] == '-';
+				i++;
+			}
+			int e = 0, expStart = i;
+			for (; i<length && token[i] >= '0' && token[i] <= '9' && e < 1000; i++)
+				e = 10 * e + (token[i] - '0');
+			if (i == expStart)
+				return parseDoubleSlow(length);
+			exponent += negativeExponent ? -e : e;
+		}
+		if (i != length || mantissa >= MAX_EXACT_MANTISSA || exponent < -22 || exponent > 22)
+			return parseDoubleSlow(length);
+
+		// both the mantissa and the power of 10 are exact, so the result is
+		// correctly rounded
+		double value = exponent >= 0 ? mantissa * POW10[exponent] : mantissa / POW10[-exponent];
+		return negative ? -value : value;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (in != null)
+			in.close();
+	}
+
+	/**
+	 * Copies the next token into token.
+	 *
+	 * @return length of the token
+	 */
+	private int nextToken() {
+		int c = read();
+		while (c != -1 && isWhitespace(c))
+			c = read();
+		if (c == -1)
+			throw new NoSuchElementException();
+
+		int length = 0;
+		while (c != -1 && !isWhitespace(c)) {
+			if (length == token.length)
+				token = Arrays.copyOf(token, 2 * length);
+			token[length++] = (byte) c;
+			c = read();
+		}
+		return length;
+	}
+
+	private int read() {
+		if (pos == limit && !fill())
+			return -1;
+		return buffer[pos++] & 0xFF;
+	}
+
+	/**
+	 * Refills the buffer.
+	 *
+	 * @return false at the end of the input
+	 */
+	private boolean fill() {
+		pos = 0;
+		if (source != null) {
+			limit = Math.min(buffer.length, source.remaining());
+			source.get(buffer, 0, limit);
+		} else {
+			try {
+				limit = Math.max(in.read(buffer), 0);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return limit > 0;
+	}
+
+	private static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f';
+	}
+
+	private int parseIntSlow(int length) {
+		try {
+			return Integer.parseInt(tokenString(length));
+		} catch (NumberFormatException e) {
+			throw mismatch(length);
+		}
+	}
+
+	private double parseDoubleSlow(int length) {
+		try {
+			return Double.parseDouble(tokenString(length));
+		} catch (NumberFormatException e) {
+			throw mismatch(length);
+		}
+	}
+
+	private InputMismatchException mismatch(int length) {
+		return new InputMismatchException(tokenString(length));
+	}
+
+	private String tokenString(int length) {
+		return new String(token, 0, length, StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,237 @@
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+
+/**
+ * Writer of the output format of the HMM programs (see HMMReader), formatting
+ * the numbers directly into a byte buffer instead of using String.format for
+ * every element. Decimal numbers are written with 2 decimals, exactly as
+ * String.format("%.2f") does in the root locale (HALF_UP rounding of the
+ * decimal representation of the number). The output doesn't depend on the
+ * default locale: the decimal separator is always '.', as in the expected
+ * outputs of the HMM programs.
+ *
+ * @author fruggeri
+ */
+public class HMMWriter implements Closeable, Flushable {
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final double SCALE = 100;				// 10^decimals
+	private static final double MAX_SCALED = 1L << 31;		// larger values are formatted by String.format
+	private static final double TIE_TOLERANCE = 1e-5;		// larger than the rounding error of v * SCALE
+	private static final int MAX_NUMBER = 24;				// longest number written by the fast path
+
+	private final OutputStream out;
+	private final byte[] buffer;
+	private int pos;
+
+	/**
+	 * Constructs a writer to a stream (e.g. System.out). The writer does its own
+	 * buffering, so nothing is written until flush() or close().
+	 *
+	 * @param out output stream
+	 */
+	public HMMWriter(OutputStream out) {
+		this.out = out;
+		buffer = new byte[BUFFER_SIZE];
+	}
+
+	/**
+	 * Writes a matrix in the format "rows cols values..." (each value followed by
+	 * a space).
+	 *
+	 * @param m matrix
+	 */
+	public void writeMatrix(double[][] m) {
+		writeInt(m.length);
+		writeSpace();
+		writeInt(m[0].length);
+		writeSpace();
+		for (int i=0; i<m.length; i++)
+			for (int j=0; j<m[i].length; j++) {
+				writeDouble(m[i][j]);
+				writeSpace();
+			}
+	}
+
+	/**
+	 * Like writeMatrix(double[][]), for a contiguous row-major matrix.
+	 *
+	 * @param m rows x cols matrix
+	 * @param rows number of rows
+	 * @param cols number of columns
+	 */
+	public void writeMatrix(double[] m, int rows, int cols) {
+		writeInt(rows);
+		writeSpace();
+		writeInt(cols);
+		writeSpace();
+		for (int i=0; i<rows*cols; i++) {
+			writeDouble(m[i]);
+			writeSpace();
+		}
+	}
+
+	/**
+	 * Writes a vector as a 1 x N matrix ("1 N values...").
+	 *
+	 * @param v vector
+	 */
+	public void writeVector(double[] v) {
+		writeMatrix(v, 1, v.length);
+	}
+
+	/**
+	 * Writes integers (e.g. a state sequence), each followed by a space.
+	 *
+	 * @param v integers
+	 */
+	public void writeInts(int[] v) {
+		for (int x : v) {
+			writeInt(x);
+			writeSpace();
+		}
+	}
+
+	/**
+	 * Writes an integer.
+	 *
+	 * @param x integer
+	 */
+	public void writeInt(int x) {
+		ensure(MAX_NUMBER);
+		long v = x;
+		if (v < 0) {
+			buffer[pos++] = '-';
+			v = -v;
+		}
+		pos = writeDigits(v, 1, buffer, pos);
+	}
+
+	/**
+	 * Writes a decimal number with 2 decimals.
+	 *
+	 * @param v number
+	 */
+	public void writeDouble(double v) {
+		ensure(MAX_NUMBER);
+		int end = formatFixed(v, buffer, pos);
+		if (end >= 0) {
+			pos = end;
+			return;
+		}
+		String s = String.format(Locale.ROOT, "%.2f", v);
+		ensure(s.length());
+		for (int i=0; i<s.length(); i++)
+			buffer[pos++] = (byte) s.charAt(i);
+	}
+
+	/**
+	 * Writes a space.
+	 */
+	public void writeSpace() {
+		ensure(1);
+		buffer[pos++] = ' ';
+	}
+
+	/**
+	 * Writes a line separator.
+	 */
+	public void newLine() {
+		ensure(1);
+		buffer[pos++] = '\n';
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.write(buffer, 0, pos);
+		pos = 0;
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+
+	/**
+	 * Appends a decimal number with 2 decimals, like writeDouble.
+	 *
+	 * @param sb string builder
+	 * @param v number
+	 */
+	public static void appendFixed(StringBuilder sb, double v) {
+		byte[] tmp = new byte[MAX_NUMBER];
+		int end = formatFixed(v, tmp, 0);
+		if (end < 0) {
+			sb.append(String.format(Locale.ROOT, "%.2f", v));
+			return;
+		}
+		for (int i=0; i<end; i++)
+			sb.append((char) tmp[i]);
+	}
+
+	/**
+	 * Formats a decimal number with 2 decimals, if it is not too large and not
+	 * (almost) halfway between two results, where the rounding of String.format
+	 * depends on the decimal representation of the number.
+	 *
+	 * @param v number
+	 * @param dst destination, with at least MAX_NUMBER bytes from off
+	 * @param off offset in dst
+	 * @return end of the number in dst, -1 if it must be formatted by
+	 *         String.format
+	 */
+	private static int formatFixed(double v, byte[] dst, int off) {
+		double r = Math.abs(v) * SCALE;
+		if (!(r < MAX_SCALED))		// also NaN
+			return -1;
+		if (Math.abs(r - Math.floor(r) - 0.5) < TIE_TOLERANCE)
+			return -1;
+
+		long n = Math.round(r);
+		if (Double.doubleToRawLongBits(v) < 0)	// also -0.0, formatted as "-0.00"
+			dst[off++] = '-';
+		off = writeDigits(n / 100, 1, dst, off);
+		dst[off++] = '.';
+		return writeDigits(n % 100, 2, dst, off);
+	}
+
+	/**
+	 * Writes the decimal digits of a non-negative number.
+	 *
+	 * @param v number
+	 * @param minDigits minimum number of digits (padded with zeros)
+	 * @param dst destination
+	 * @param off offset in dst
+	 * @return end of the number in dst
+	 */
+	private static int writeDigits(long v, int minDigits, byte[] dst, int off) {
+		int digits = 1;
+		for (long p = 10; p <= v && digits < 19; p *= 10)
+			digits++;
+		digits = Math.max(digits, minDigits);
+		for (int i=off+digits-1; i>=off; i--) {
+			dst[i] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+		return off + digits;
+	}
+
+	/**
+	 * Makes room for n bytes in the buffer, writing it out if needed.
+	 */
+	private void ensure(int n) {
+		if (pos + n <= buffer.length)
+			return;
+		try {
+			out.write(buffer, 0, pos);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		pos = 0;
+	}
+}
@@ -20,19 +20,56 @@ public abstract class Matrix {
 	}
 	
 	public static String vectorToString(double[] v) {
-		StringBuffer sb = new StringBuffer();
+		StringBuilder sb = new StringBuilder();
 		sb.append("1 ").append(v.length).append(" ");
-		for (int i=0; i<v.length; i++)
-			sb.append(String.format("%.2f", v[i])).append(" ");
+		for (int i=0; i<v.length; i++) {
+			HMMWriter.appendFixed(sb, v[i]);
+			sb.append(" ");
+		}
 		return sb.toString();
 	}
 	
 	public static String matrixToString(double[][] m) {
-		StringBuffer sb = new StringBuffer();
+		StringBuilder sb = new StringBuilder();
 		sb.append(m.length).append(" ").append(m[0].length).append(" ");
 		for (int i=0; i<m.length; i++)
-			for (int j=0; j<m[i].length; j++)
-				sb.append(String.format("%.2f", m[i][j])).append(" ");
+			for (int j=0; j<m[i].length; j++) {
+				HMMWriter.appendFixed(sb, m[i][j]);
+				sb.append(" ");
+			}
+		return sb.toString();
+	}
+	
+	/**
+	 * Copies a matrix into a contiguous row-major array.
+	 */
+	public static double[] flatten(double[][] m) {
+		int cols = m[0].length;
+		double[] result = new double[m.length * cols];
+		for (int i=0; i<m.length; i++)
+			System.arraycopy(m[i], 0, result, i*cols, cols);
+		return result;
+	}
+	
+	/**
+	 * Transposes a contiguous row-major matrix.
+	 * 
+	 * @param m rows x cols matrix
+	 * @param result preallocated cols x rows matrix filled by the method
+	 */
+	public static void transpose(double[] m, int rows, int cols, double[] result) {
+		for (int i=0; i<rows; i++)
+			for (int j=0; j<cols; j++)
+				result[j*rows + i] = m[i*cols + j];
+	}
+	
+	public static String matrixToString(double[] m, int rows, int cols) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(rows).append(" ").append(cols).append(" ");
+		for (int i=0; i<rows*cols; i++) {
+			HMMWriter.appendFixed(sb, m[i]);
+			sb.append(" ");
+		}
 		return sb.toString();
 	}
 	
@@ -0,0 +1,38 @@
+/**
+ * Shared state of the restarts of HMM.learnWithRestarts: the best
+ * log-likelihood reached so far by any restart, used to abort the restarts that
+ * cannot catch up.
+ *
+ * @author fruggeri
+ */
+class RestartRace {
+	private final int warmup;
+	private double bestLogProb = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * @param warmup number of iterations a restart runs before it can be aborted
+	 */
+	RestartRace(int warmup) {
+		this.warmup = warmup;
+	}
+
+	/**
+	 * Records the log-likelihood reached by a restart and decides whether it is
+	 * hopeless, i.e. whether it would stay below the best log-likelihood reached so
+	 * far even if it kept increasing at the current rate until the last iteration
+	 * (EM gains usually shrink, so this is an optimistic extrapolation).
+	 *
+	 * @param iters number of iterations completed by the restart
+	 * @param maxIters maximum number of iterations
+	 * @param oldLogProb log-likelihood at the previous iteration
+	 * @param logProb log-likelihood at the current iteration
+	 * @return true if the restart should be aborted
+	 */
+	synchronized boolean isHopeless(int iters, int maxIters, double oldLogProb, double logProb) {
+		if (logProb > bestLogProb)
+			bestLogProb = logProb;
+		if (iters < warmup)
+			return false;
+		return logProb + (logProb - oldLogProb) * (maxIters - iters) < bestLogProb;
+	}
+}
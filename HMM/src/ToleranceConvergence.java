@@ -0,0 +1,51 @@
+/**
+ * Convergence policy based on tolerances: an iteration makes significant
+ * progress if it increases the log-likelihood by at least an absolute and a
+ * relative tolerance, and changes some parameter by at least a parameter
+ * tolerance. A tolerance of 0 disables the corresponding test.
+ * 
+ * @author fruggeri
+ */
+public class ToleranceConvergence implements ConvergencePolicy {
+	/** Stops only when the likelihood does not increase. */
+	public static final ToleranceConvergence STRICT = new ToleranceConvergence(0, 0, 0, 0);
+	
+	private final double absoluteTolerance, relativeTolerance, parameterTolerance;
+	private final int patience;
+	
+	/**
+	 * Constructs a policy with the given tolerances.
+	 * 
+	 * @param absoluteTolerance minimum increase of the log-likelihood
+	 * @param relativeTolerance minimum increase of the log-likelihood, relative to
+	 *                          its absolute value
+	 * @param parameterTolerance minimum largest absolute change of a parameter
+	 * @param patience number of consecutive iterations without significant
+	 *                 progress tolerated before stopping
+	 */
+	public ToleranceConvergence(double absoluteTolerance, double relativeTolerance, double parameterTolerance,
+			int patience) {
+		this.absoluteTolerance = absoluteTolerance;
+		this.relativeTolerance = relativeTolerance;
+		this.parameterTolerance = parameterTolerance;
+		this.patience = patience;
+	}
+	
+	@Override
+	public boolean isProgress(double oldLogProb, double logProb, double parameterChange) {
+		double gain = logProb - oldLogProb;
+		return gain >= absoluteTolerance && gain >= relativeTolerance * Math.abs(logProb)
+				&& parameterChange >= parameterTolerance;
+	}
+	
+	@Override
+	public int getPatience() {
+		return patience;
+	}
+	
+	@Override
+	public String toString() {
+		return "absolute tolerance: " + absoluteTolerance + ", relative tolerance: " + relativeTolerance
+				+ ", parameter tolerance: " + parameterTolerance + ", patience: " + patience;
+	}
+}
@@ -0,0 +1,44 @@
+/**
+ * Outcome of the training of a HMM (Baum-Welch).
+ *
+ * @author fruggeri
+ */
+public class TrainingReport {
+	private final int iterations;
+	private final double logLikelihood;
+	private final long wallTimeNanos;
+
+	TrainingReport(int iterations, double logLikelihood, long wallTimeNanos) {
+		this.iterations = iterations;
+		this.logLikelihood = logLikelihood;
+		this.wallTimeNanos = wallTimeNanos;
+	}
+
+	/**
+	 * @return number of iterations completed
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * @return log-probability of the training sequence given the parameters
+	 *         evaluated by the last iteration
+	 */
+	public double getLogLikelihood() {
+		return logLikelihood;
+	}
+
+	/**
+	 * @return wall-clock time of the training in milliseconds
+	 */
+	public double getWallTimeMs() {
+		return wallTimeNanos / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return "iterations: " + iterations + ", log-likelihood: " + logLikelihood + ", time: " + getWallTimeMs()
+				+ " ms";
+	}
+}
@@ -0,0 +1,108 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * HMMKernels on the SIMD instructions of the machine (e.g. 4 doubles per
+ * operation with AVX2, 8 with AVX-512), through the Vector API of JDK 16+.
+ * The vectors shorter than two registers (N < 2 * LANES, i.e. 8 states with
+ * AVX2, 16 with AVX-512) use the scalar loops: below that, the setup of the
+ * vectors and the reduction of the lanes cost as much as they save
+ * (HMMBenchmark with 8 lanes: the vector kernels are slower or even at N=6 to
+ * 14, and about twice as fast from N=16).
+ *
+ * It is kept apart from the sources of the project, which compile for Java 8.
+ * Compile and run (from the HMM directory) with:
+ * javac -d bin src/*.java
+ * javac --add-modules jdk.incubator.vector -cp bin -d bin vector/VectorKernels.java
+ * java --add-modules jdk.incubator.vector -cp bin HMMC < hmm_c_N1000.in
+ * HMMKernels falls back to the scalar loops when the class or the module is
+ * missing.
+ *
+ * @author fruggeri
+ */
+class VectorKernels extends HMMKernels.Scalar {
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	private static final int LANES = SPECIES.length();
+	private static final int MIN_LENGTH = 2 * LANES;	// shorter vectors use the scalar loops
+
+	@Override
+	double dot(double[] a, int aOff, double[] b, int bOff, int n) {
+		if (n < MIN_LENGTH)
+			return super.dot(a, aOff, b, bOff, n);
+		int bound = SPECIES.loopBound(n), j = 0;
+		DoubleVector sum = DoubleVector.zero(SPECIES);
+		for (; j<bound; j+=LANES)
+			sum = DoubleVector.fromArray(SPECIES, a, aOff + j)
+					.fma(DoubleVector.fromArray(SPECIES, b, bOff + j), sum);
+		double result = sum.reduceLanes(VectorOperators.ADD);
+		for (; j<n; j++)
+			result += a[aOff + j] * b[bOff + j];
+		return result;
+	}
+
+	@Override
+	double dot(double[] a, int aOff, double[] b, int bOff, double[] c, int cOff, int n) {
+		if (n < MIN_LENGTH)
+			return super.dot(a, aOff, b, bOff, c, cOff, n);
+		int bound = SPECIES.loopBound(n), j = 0;
+		DoubleVector sum = DoubleVector.zero(SPECIES);
+		for (; j<bound; j+=LANES)
+			sum = DoubleVector.fromArray(SPECIES, a, aOff + j)
+					.mul(DoubleVector.fromArray(SPECIES, b, bOff + j))
+					.fma(DoubleVector.fromArray(SPECIES, c, cOff + j), sum);
+		double result = sum.reduceLanes(VectorOperators.ADD);
+		for (; j<n; j++)
+			result += a[aOff + j] * b[bOff + j] * c[cOff + j];
+		return result;
+	}
+
+	@Override
+	double accumulate(double s, double[] a, int aOff, double[] b, int bOff, double[] c, int cOff,
+			double[] acc, int accOff, int n) {
+		if (n < MIN_LENGTH)
+			return super.accumulate(s, a, aOff, b, bOff, c, cOff, acc, accOff, n);
+		int bound = SPECIES.loopBound(n), j = 0;
+		DoubleVector sum = DoubleVector.zero(SPECIES);
+		for (; j<bound; j+=LANES) {
+			DoubleVector tmp = DoubleVector.fromArray(SPECIES, a, aOff + j).mul(s)
+					.mul(DoubleVector.fromArray(SPECIES, b, bOff + j))
+					.mul(DoubleVector.fromArray(SPECIES, c, cOff + j));
+			DoubleVector.fromArray(SPECIES, acc, accOff + j).add(tmp).intoArray(acc, accOff + j);
+			sum = sum.add(tmp);
+		}
+		double result = sum.reduceLanes(VectorOperators.ADD);
+		for (; j<n; j++) {
+			double tmp = s * a[aOff + j] * b[bOff + j] * c[cOff + j];
+			acc[accOff + j] += tmp;
+			result += tmp;
+		}
+		return result;
+	}
+
+	@Override
+	double divide(double[] src, int srcOff, double d, double[] dst, int dstOff, int n) {
+		if (n < MIN_LENGTH)
+			return super.divide(src, srcOff, d, dst, dstOff, n);
+		int bound = SPECIES.loopBound(n), j = 0;
+		DoubleVector change = DoubleVector.zero(SPECIES);
+		for (; j<bound; j+=LANES) {
+			DoubleVector old = DoubleVector.fromArray(SPECIES, dst, dstOff + j);
+			DoubleVector tmp = DoubleVector.fromArray(SPECIES, src, srcOff + j).div(d);
+			tmp.intoArray(dst, dstOff + j);
+			change = change.max(tmp.sub(old).abs());
+		}
+		double result = change.reduceLanes(VectorOperators.MAX);
+		for (; j<n; j++) {
+			double old = dst[dstOff + j];
+			dst[dstOff + j] = src[srcOff + j] / d;
+			result = Math.max(result, Math.abs(dst[dstOff + j] - old));
+		}
+		return result;
+	}
+
+	@Override
+	String getName() {
+		return "vector (" + LANES + " doubles)";
+	}
+}